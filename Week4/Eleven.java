@@ -2,17 +2,42 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * Solution for exercise 11.1 in "Exercises in Programming Style" by Professor C. Lopes. First part of the homework of
  * week 4 of UCI CS253 (Fall 2018 edition).
+ * <p>
+ * The words are streamed between the things in batches using bulk messages (see {@link Letterbox}), such that the
+ * per-message overhead of the letterbox style is paid per batch rather than per word.
+ * <p>
+ * Run with {@code -Deleven.async=true} to have each thing process its messages on its own thread (see {@link
+ * Mailbox}), such that splitting, stop word filtering, and counting run at the same time.
  *
  * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
  */
 public class Eleven {
 
+    /**
+     * The (maximum) number of words in a bulk message.
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    /**
+     * Name of the system property that enables the asynchronous letterbox mode.
+     */
+    public static final String ASYNC_PROPERTY = "eleven.async";
+
+    /**
+     * In the asynchronous letterbox mode, the maximum number of batches that have been sent off for stop word filtering
+     * and counting, but that have not been counted yet.
+     */
+    private static final int MAX_BATCHES_IN_FLIGHT = 16;
+
     public static void main(String[] args) {
         WordFrequencyController wfc = new WordFrequencyController();
         wfc.receive(new String[]{StringConstants.INIT, args[0]}, Void.class);
@@ -21,6 +46,10 @@ public class Eleven {
 
     /**
      * Interface that classes will implement to signal that they operate in letterbox style.
+     * <p>
+     * Bulk messages carry a batch of words as the arguments of the message, i.e., in {@code msg[1..]}. Operations that
+     * return a batch of words return it as a message whose operation slot ({@code msg[0]}) is empty, such that the
+     * batch can be forwarded to the next thing by filling in the operation, without copying the words.
      */
     interface Letterbox {
         /**
@@ -42,6 +71,56 @@ public class Eleven {
         <T> T receive(String[] msg, Class<T> expectedReturnType);
     }
 
+    /**
+     * The mailbox of a thing for the asynchronous letterbox mode. Messages delivered to the mailbox are queued and
+     * received by the thing on the mailbox's own thread, one at a time and in the order they were delivered, so the
+     * thing itself needs no synchronization.
+     */
+    static class Mailbox {
+
+        private final Letterbox mThing;
+        private final ExecutorService mThread;
+
+        /**
+         * @param name
+         *         The name of the thing, used as the name of the mailbox's thread.
+         * @param thing
+         *         The thing that receives the messages delivered to this mailbox.
+         */
+        Mailbox(String name, Letterbox thing) {
+            mThing = thing;
+            mThread = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                // Do not keep the JVM alive if the controller fails.
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        /**
+         * Delivers a message to the mailbox.
+         *
+         * @param msg
+         *         The message.
+         * @param expectedReturnType
+         *         A class literal that the caller supplies to indicate the expected return type.
+         * @param <T>
+         *         The type of the result.
+         * @return A future that is completed with the result of the thing receiving the message, or exceptionally if
+         * the thing fails to receive the message.
+         */
+        <T> CompletableFuture<T> receive(String[] msg, Class<T> expectedReturnType) {
+            return CompletableFuture.supplyAsync(() -> mThing.receive(msg, expectedReturnType), mThread);
+        }
+
+        /**
+         * Stops the mailbox's thread once all delivered messages have been received.
+         */
+        void close() {
+            mThread.shutdown();
+        }
+    }
+
     /**
      * Models the contents of the file.
      */
@@ -52,6 +131,11 @@ public class Eleven {
          */
         private String mFileContents;
 
+        /**
+         * The index in {@link #mFileContents} from which {@link #nextWords(int)} continues.
+         */
+        private int mPosition;
+
         @Override
         public <T> T receive(String[] msg, Class<T> expectedReturnType) {
             switch (msg[0]) {
@@ -59,6 +143,8 @@ public class Eleven {
                     return expectedReturnType.cast(init(msg[1]));
                 case StringConstants.WORDS:
                     return expectedReturnType.cast(getWords());
+                case StringConstants.NEXT_WORDS:
+                    return expectedReturnType.cast(nextWords(Integer.parseInt(msg[1])));
                 default:
                     throw new IllegalArgumentException(StringConstants.msgNotUnderstood(msg[0]));
             }
@@ -105,6 +191,47 @@ public class Eleven {
             return mFileContents.split("\\s+");
         }
 
+        /**
+         * Splits off the next words of the file contents. The words are the same as those returned by {@link
+         * #getWords()}, except for the empty word that {@link #getWords()} returns if the file contents start with
+         * whitespace.
+         *
+         * @param maxCount
+         *         The maximum number of words to return.
+         * @return A bulk message with an empty operation slot that contains the next (at most {@code maxCount}) words;
+         * without any words once all words have been returned.
+         */
+        private String[] nextWords(int maxCount) {
+            if (mFileContents == null) {
+                throw new IllegalStateException(StringConstants.notInitialized());
+            }
+            String[] batch = new String[maxCount + 1];
+            int count = 0;
+            int length = mFileContents.length();
+            while (count < maxCount) {
+                while (mPosition < length && isWhitespace(mFileContents.charAt(mPosition))) {
+                    mPosition++;
+                }
+                if (mPosition == length) {
+                    break;
+                }
+                int start = mPosition;
+                while (mPosition < length && !isWhitespace(mFileContents.charAt(mPosition))) {
+                    mPosition++;
+                }
+                batch[++count] = mFileContents.substring(start, mPosition);
+            }
+            return count == maxCount ? batch : Arrays.copyOf(batch, count + 1);
+        }
+
+        /**
+         * @return {@code true} if {@code c} is whitespace as per the regular expression {@code \s}, as used by {@link
+         * #getWords()}.
+         */
+        private static boolean isWhitespace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\013' || c == '\f' || c == '\r';
+        }
+
     }
 
     /**
@@ -124,6 +251,8 @@ public class Eleven {
                     return expectedReturnType.cast(init());
                 case StringConstants.IS_STOP_WORD:
                     return expectedReturnType.cast(isStopWord(msg[1]));
+                case StringConstants.FILTER_STOP_WORDS:
+                    return expectedReturnType.cast(filterStopWords(msg));
                 default:
                     throw new IllegalArgumentException(StringConstants.msgNotUnderstood(msg[0]));
             }
@@ -162,6 +291,25 @@ public class Eleven {
             }
             return mStopWords.contains(word) || word.length() <= 1;
         }
+
+        /**
+         * Filters the stop words out of a batch of words.
+         *
+         * @param msg
+         *         A bulk message that contains the batch of words.
+         * @return A bulk message with an empty operation slot that contains the words of the batch that are not stop
+         * words.
+         */
+        private String[] filterStopWords(String[] msg) {
+            String[] survivors = new String[msg.length];
+            int count = 0;
+            for (int i = 1; i < msg.length; i++) {
+                if (!isStopWord(msg[i])) {
+                    survivors[++count] = msg[i];
+                }
+            }
+            return Arrays.copyOf(survivors, count + 1);
+        }
     }
 
     /**
@@ -179,6 +327,8 @@ public class Eleven {
             switch (msg[0]) {
                 case StringConstants.INCREMENT_COUNT:
                     return expectedReturnType.cast(incrementCount(msg[1]));
+                case StringConstants.INCREMENT_COUNTS:
+                    return expectedReturnType.cast(incrementCounts(msg));
                 case StringConstants.SORTED:
                     return expectedReturnType.cast(sorted());
                 default:
@@ -198,6 +348,20 @@ public class Eleven {
             return mWordFreqs.merge(word, 1, (current, one) -> current + one);
         }
 
+        /**
+         * Increments the frequency of each word of a batch of words by one.
+         *
+         * @param msg
+         *         A bulk message that contains the batch of words.
+         * @return The number of words in the batch.
+         */
+        private Integer incrementCounts(String[] msg) {
+            for (int i = 1; i < msg.length; i++) {
+                mWordFreqs.merge(msg[i], 1, (current, one) -> current + one);
+            }
+            return msg.length - 1;
+        }
+
         private List<Pair<String, Integer>> sorted() {
             return mWordFreqs.entrySet().stream().map(e -> new Pair<>(e.getKey(), e.getValue())).
                     sorted((p1, p2) -> -p1.second().compareTo(p2.second())).collect(Collectors.toList());
@@ -253,19 +417,76 @@ public class Eleven {
          * (no return value) method.
          */
         private Void run() {
-            for (String word : mDataStorageManager.receive(new String[]{StringConstants.WORDS}, String[].class)) {
-                if (!mStopWordManager.receive(new String[]{StringConstants.IS_STOP_WORD, word}, Boolean.class)) {
-                    // Although the call returns an Integer, we don't care about its value here.
-                    mWordFreqManager.receive(new String[]{StringConstants.INCREMENT_COUNT, word}, Integer.class);
-                }
+            if (Boolean.getBoolean(ASYNC_PROPERTY)) {
+                return runAsync();
+            }
+            String[] nextWords = {StringConstants.NEXT_WORDS, Integer.toString(BATCH_SIZE)};
+            String[] batch;
+            // Stream the words from the data storage manager through the stop word manager to the word frequency
+            // manager, a batch at a time.
+            while ((batch = mDataStorageManager.receive(nextWords, String[].class)).length > 1) {
+                batch[0] = StringConstants.FILTER_STOP_WORDS;
+                String[] survivors = mStopWordManager.receive(batch, String[].class);
+                survivors[0] = StringConstants.INCREMENT_COUNTS;
+                // Although the call returns an Integer, we don't care about its value here.
+                mWordFreqManager.receive(survivors, Integer.class);
             }
             List<Pair<String, Integer>> wordFreqs =
                     mWordFreqManager.receive(new String[]{StringConstants.SORTED}, List.class);
+            printWordFreqs(wordFreqs);
+            return null;
+        }
+
+        /**
+         * Same as {@link #run()}, but with the things receiving their messages through {@link Mailbox}es. The batches
+         * are pipelined: while the stop word manager filters one batch and the word frequency manager counts another,
+         * the data storage manager splits off the next.
+         *
+         * @return {@code null}; see {@link #run()}.
+         */
+        private Void runAsync() {
+            Mailbox dataStorageMailbox = new Mailbox("DataStorageManager", mDataStorageManager);
+            Mailbox stopWordMailbox = new Mailbox("StopWordManager", mStopWordManager);
+            Mailbox wordFreqMailbox = new Mailbox("WordFrequencyManager", mWordFreqManager);
+            try {
+                String[] nextWords = {StringConstants.NEXT_WORDS, Integer.toString(BATCH_SIZE)};
+                // The batches that have been sent off, but that have not been counted yet.
+                Deque<CompletableFuture<Integer>> inFlight = new ArrayDeque<>();
+                CompletableFuture<String[]> next = dataStorageMailbox.receive(nextWords, String[].class);
+                String[] batch;
+                while ((batch = next.join()).length > 1) {
+                    // Have the next batch split off while this one is filtered and counted.
+                    next = dataStorageMailbox.receive(nextWords, String[].class);
+                    batch[0] = StringConstants.FILTER_STOP_WORDS;
+                    // Mailboxes receive messages in order, so the survivors are also counted in order.
+                    inFlight.add(stopWordMailbox.receive(batch, String[].class).thenCompose(survivors -> {
+                        survivors[0] = StringConstants.INCREMENT_COUNTS;
+                        return wordFreqMailbox.receive(survivors, Integer.class);
+                    }));
+                    // Do not run ahead of the slowest thing by too much.
+                    while (inFlight.size() > MAX_BATCHES_IN_FLIGHT) {
+                        inFlight.remove().join();
+                    }
+                }
+                // Wait for the remaining batches to be counted (and for any failure to surface).
+                inFlight.forEach(CompletableFuture::join);
+                @SuppressWarnings("unchecked")
+                List<Pair<String, Integer>> wordFreqs =
+                        wordFreqMailbox.receive(new String[]{StringConstants.SORTED}, List.class).join();
+                printWordFreqs(wordFreqs);
+            } finally {
+                dataStorageMailbox.close();
+                stopWordMailbox.close();
+                wordFreqMailbox.close();
+            }
+            return null;
+        }
+
+        private static void printWordFreqs(List<Pair<String, Integer>> wordFreqs) {
             for (int i = 0; i < 25; i++) {
                 Pair<String, Integer> p = wordFreqs.get(i);
                 System.out.println(String.format("%s  -  %d", p.first(), p.second()));
             }
-            return null;
         }
     }
 
@@ -305,6 +526,10 @@ public class Eleven {
         public static final String WORDS = "words";
         public static final String IS_STOP_WORD = "is_stop_word";
         public static final String INCREMENT_COUNT = "increment_count";
+        // Bulk operation identifiers
+        public static final String NEXT_WORDS = "next_words";
+        public static final String FILTER_STOP_WORDS = "filter_stop_words";
+        public static final String INCREMENT_COUNTS = "increment_counts";
         public static final String SORTED = "sorted";
         public static final String RUN = "run";
 
@@ -1,5 +1,9 @@
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.function.Consumer;
@@ -14,55 +18,296 @@ import java.util.stream.Stream;
  * style. All functionality (variables as well as methods/functions) is stored as values in maps. As the values are of
  * different types, we must resort to {@code Map<String, Object>} to fit them all in the map. As a result, we loose all
  * static checking of types.
+ * <p>
+ * The maps are backed by shapes (see {@link MeMap}) such that looking up a key resolves to a slot index, and the hot
+ * lookups go through inline caches (see {@link CallSite}) that skip the lookup as long as the map is not modified.
+ * <p>
+ * Rather than an array of all words, {@link #DATA_STORAGE_OBJ} provides a cursor object that lazily reads the words
+ * of the input file a chunk at a time (see {@link WordCursor}), so memory use does not grow with the size of the input.
  *
  * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
  */
 public class Twelve {
 
     /**
-     * A {@link HashMap} that creates an alias for "this" that is "me".
+     * A map that creates an alias for "this" that is "me".
      * Defined in a base class as we want to use "me" in all three maps, so we might as well just declare the alias
      * once and for all.
-     * @param <K> The type of the keys in the map.
-     * @param <V> The type of the values in the map.
+     * <p>
+     * Rather than a hash table per map, the keys of a map are described by its {@link Shape}, which maps each key to
+     * the index of the slot that holds its value. Maps that have the same keys, added in the same order, share the same
+     * shape. Adding a key moves the map to another shape. Keys cannot be removed.
      */
-    static class MeMap<K, V> extends HashMap<K, V> {
-        protected final MeMap<K, V> me = this;
+    static class MeMap extends AbstractMap<String, Object> {
+        protected final MeMap me = this;
+
+        private Shape mShape = Shape.EMPTY;
+        private Object[] mSlots = new Object[8];
+
+        /**
+         * Incremented whenever a slot is added or reassigned, which invalidates the {@link CallSite}s that cached a
+         * value of this map.
+         */
+        private int mModCount;
+
+        @Override
+        public Object get(Object key) {
+            int index = mShape.indexOf(key);
+            return index < 0 ? null : mSlots[index];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return mShape.indexOf(key) >= 0;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            int index = mShape.indexOf(key);
+            if (index < 0) {
+                mShape = mShape.with(key);
+                index = mShape.size() - 1;
+                if (index == mSlots.length) {
+                    mSlots = Arrays.copyOf(mSlots, 2 * mSlots.length);
+                }
+            }
+            Object old = mSlots[index];
+            mSlots[index] = value;
+            mModCount++;
+            return old;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            throw new UnsupportedOperationException("Slots cannot be removed");
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            // A read-only snapshot.
+            Map<String, Object> entries = new LinkedHashMap<>();
+            for (int i = 0; i < mShape.size(); i++) {
+                entries.put(mShape.mKeys[i], mSlots[i]);
+            }
+            return Collections.unmodifiableMap(entries).entrySet();
+        }
+    }
+
+    /**
+     * Describes the keys of a {@link MeMap} and the slot index of each key. Shapes are immutable and form a tree of
+     * transitions: adding a key to a map with shape {@code s} moves it to the child shape of {@code s} for that key.
+     */
+    static final class Shape {
+
+        static final Shape EMPTY = new Shape(new String[0]);
+
+        private final String[] mKeys;
+        private final Map<String, Integer> mIndices = new HashMap<>();
+        private final Map<String, Shape> mTransitions = new HashMap<>();
+
+        private Shape(String[] keys) {
+            mKeys = keys;
+            for (int i = 0; i < keys.length; i++) {
+                mIndices.put(keys[i], i);
+            }
+        }
+
+        int size() {
+            return mKeys.length;
+        }
+
+        /**
+         * @return The slot index of {@code key}, or {@code -1} if this shape does not have {@code key}.
+         */
+        int indexOf(Object key) {
+            Integer index = mIndices.get(key);
+            return index == null ? -1 : index;
+        }
+
+        /**
+         * @return The shape with the keys of this shape plus {@code key} (in the last slot).
+         */
+        Shape with(String key) {
+            return mTransitions.computeIfAbsent(key, k -> {
+                String[] keys = Arrays.copyOf(mKeys, mKeys.length + 1);
+                keys[mKeys.length] = k;
+                return new Shape(keys);
+            });
+        }
+    }
+
+    /**
+     * An inline cache for looking up a key: caches the value that the key resolved to in the last map looked up, along
+     * with that map's {@link MeMap#mModCount}. As long as the same map is looked up and it has not been modified since,
+     * the lookup costs a reference and an integer comparison. Once a slot of the map is added or reassigned, e.g.,
+     * when {@code TOP25} is added, the next lookup resolves the key again through the map's shape.
+     *
+     * @param <T> The type of the value that the key resolves to.
+     */
+    static final class CallSite<T> {
+
+        private final String mKey;
+        private MeMap mReceiver;
+        private int mModCount;
+        private T mTarget;
+
+        CallSite(String key) {
+            mKey = key;
+        }
+
+        @SuppressWarnings("unchecked")
+        T lookup(Map<String, Object> obj) {
+            MeMap map = (MeMap) obj;
+            if (map != mReceiver || map.mModCount != mModCount) {
+                // Cache miss.
+                int index = map.mShape.indexOf(mKey);
+                if (index < 0) {
+                    throw new NoSuchElementException("No slot '" + mKey + "'");
+                }
+                mTarget = (T) map.mSlots[index];
+                mReceiver = map;
+                mModCount = map.mModCount;
+            }
+            return mTarget;
+        }
     }
 
-    static final Map<String, Object> DATA_STORAGE_OBJ = new MeMap<String, Object>() {
+    static final Map<String, Object> DATA_STORAGE_OBJ = new MeMap() {
         // Use initializer block to pre-fill the map. Bad practice since it's inserted into the constructor, so we
         // effectively end up calling instance methods before the object has been fully initialized... but oh well...
         {
-            // The array of words is empty before init has been called.
-            me.put(StringConstants.DATA, new String[0]);
-            // Add init function that will initialize the map with the words read from the input file.
+            // There is no input file and no cursor before init has been called.
+            me.put(StringConstants.PATH, null);
+            me.put(StringConstants.CURSOR, null);
+            // Add init function that will create a cursor over the words of the input file. Nothing is read yet.
             me.put(StringConstants.INIT, (Consumer<String>) (filepath) -> {
-                try (Stream<String> lines = Files.lines(Paths.get(filepath))) {
-                    // Make all lowercase, convert non-alphanumeric chars to spaces, and split into separate words.
-                    // Note as we stream on each line of the file, we just first join all lines (using a space as a
-                    // delimiter) before we invoke split() on the resulting joined string.
-                    String[] words = lines.map(l -> l.toLowerCase().replaceAll("[^a-zA-Z\\d\\s]", " ")).
-                            collect(Collectors.joining(" ")).split("\\s+");
-                    // Replace the empty array with the words array.
-                    me.put(StringConstants.DATA, words);
-                } catch (IOException ioe) {
-                    // Rethrow wrapped in unchecked exception.
-                    throw new RuntimeException(ioe);
+                me.put(StringConstants.PATH, filepath);
+                WordCursor cursor = new WordCursor(Paths.get(filepath));
+                // The cursor is an object of its own, with a function that returns the next chunk of words (an empty
+                // array once all words have been returned) and a function that rewinds it to the first word.
+                Map<String, Object> cursorObj = new MeMap();
+                cursorObj.put(StringConstants.NEXT_CHUNK, (Supplier<String[]>) () -> cursor.nextChunk(CHUNK_WORDS));
+                cursorObj.put(StringConstants.RESET, (Runnable) cursor::reset);
+                me.put(StringConstants.CURSOR, cursorObj);
+            });
+            // Put a function in the map that materializes all words of the input file at once (no words before init).
+            // Avoid for large inputs; use the cursor instead. Reads through a cursor of its own, so that it does not
+            // disturb a client that is partway through the shared cursor.
+            me.put(StringConstants.WORDS, (Supplier<String[]>) () -> {
+                String filepath = (String) me.get(StringConstants.PATH);
+                if (filepath == null) {
+                    return new String[0];
+                }
+                WordCursor cursor = new WordCursor(Paths.get(filepath));
+                List<String> words = new ArrayList<>();
+                for (String[] chunk; (chunk = cursor.nextChunk(CHUNK_WORDS)).length > 0; ) {
+                    words.addAll(Arrays.asList(chunk));
                 }
+                return words.toArray(new String[0]);
             });
-            // Put a getter function in the map that extracts what is stored under 'data'.
-            // Technically the client code may also just access 'data' directly because there is no encapsulation, i.e.,
-            // client code has access to all values stored in the map, although we intend for it to make use of the
-            // getter defined here.
-            me.put(StringConstants.WORDS, (Supplier<String[]>) () -> (String[]) me.get(StringConstants.DATA));
         }
     };
 
-    @SuppressWarnings("unchecked")
-    static final Map<String, Object> STOP_WORDS_OBJ = new MeMap<String, Object>() {
+    /**
+     * The (maximum) number of words in a chunk returned by the cursor of {@link #DATA_STORAGE_OBJ}.
+     */
+    private static final int CHUNK_WORDS = 4096;
+
+    /**
+     * A lazy, resettable cursor over the words of a file. The file is memory mapped a window at a time and scanned for
+     * words as the chunks are requested. The words are the same as those of the original exercise, which lower cases
+     * the file contents, replaces all characters but {@code [a-zA-Z\d]} (and whitespace) by a space, and splits on
+     * whitespace: maximal runs of ASCII letters and digits, lower cased. Bytes outside ASCII, such as those of
+     * multi-byte UTF-8 characters, separate words.
+     */
+    static final class WordCursor {
+
+        /**
+         * The size of the memory mapped window of the file.
+         */
+        private static final int WINDOW_BYTES = 1 << 26;
+
+        private final Path mPath;
+        private final long mSize;
+        private MappedByteBuffer mWindow;
+        private long mWindowStart;
+
+        /**
+         * The offset in the file of the next byte to scan.
+         */
+        private long mPosition;
+
+        /**
+         * Collects the characters of the word being scanned.
+         */
+        private final StringBuilder mWord = new StringBuilder();
+
+        WordCursor(Path path) {
+            mPath = path;
+            try {
+                mSize = Files.size(path);
+            } catch (IOException ioe) {
+                // Rethrow wrapped in unchecked exception.
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        /**
+         * @param maxWords The maximum number of words to return.
+         * @return The next (at most {@code maxWords}) words; an empty array once all words have been returned.
+         */
+        String[] nextChunk(int maxWords) {
+            String[] chunk = new String[maxWords];
+            int count = 0;
+            while (count < maxWords) {
+                if (mPosition == mSize) {
+                    if (mWord.length() > 0) {
+                        chunk[count++] = mWord.toString();
+                        mWord.setLength(0);
+                    }
+                    break;
+                }
+                char c = (char) (byteAt(mPosition++) & 0xFF);
+                if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9') {
+                    mWord.append(c);
+                } else if (c >= 'A' && c <= 'Z') {
+                    mWord.append((char) (c + ('a' - 'A')));
+                } else if (mWord.length() > 0) {
+                    chunk[count++] = mWord.toString();
+                    mWord.setLength(0);
+                }
+            }
+            return count == maxWords ? chunk : Arrays.copyOf(chunk, count);
+        }
+
+        /**
+         * Rewinds the cursor to the first word.
+         */
+        void reset() {
+            mPosition = 0;
+            mWord.setLength(0);
+        }
+
+        private byte byteAt(long position) {
+            if (mWindow == null || position < mWindowStart || position >= mWindowStart + mWindow.limit()) {
+                try (FileChannel channel = FileChannel.open(mPath)) {
+                    // The mapping remains valid after the channel is closed.
+                    mWindow = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(WINDOW_BYTES, mSize - position));
+                    mWindowStart = position;
+                } catch (IOException ioe) {
+                    // Rethrow wrapped in unchecked exception.
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+            return mWindow.get((int) (position - mWindowStart));
+        }
+    }
+
+    static final Map<String, Object> STOP_WORDS_OBJ = new MeMap() {
         // Initializer block. See caveats listed above (in DATA_STORAGE_OBJ).
         {
+            CallSite<Set<String>> stopWordsSite = new CallSite<>(StringConstants.STOP_WORDS);
             // The set of stop words is empty before init has been called.
             me.put(StringConstants.STOP_WORDS, new HashSet<String>());
             // Add init function that will load the stop words.
@@ -78,18 +323,21 @@ public class Twelve {
                 }
             });
             // Add function that determines if a given word is a stop word.
-            me.put(StringConstants.IS_STOP_WORD, (Function<String, Boolean>) w -> w.length() <= 1 || ((Set<String>)me.get(StringConstants.STOP_WORDS)).contains(w));
+            me.put(StringConstants.IS_STOP_WORD,
+                    (Function<String, Boolean>) w -> w.length() <= 1 || stopWordsSite.lookup(me).contains(w));
         }
     };
 
     @SuppressWarnings("unchecked")
-    static final Map<String, Object> WORD_FREQS_OBJ = new MeMap<String, Object>() {
+    static final Map<String, Object> WORD_FREQS_OBJ = new MeMap() {
         // Initializer block. See caveats listed above (in DATA_STORAGE_OBJ).
         {
+            CallSite<Map<String, Integer>> freqsSite = new CallSite<>(StringConstants.FREQS);
             // The (nested) map holding the word frequencies is initially empty.
             me.put(StringConstants.FREQS, new HashMap<String, Integer>());
             // Add function that increments the word count in the nested map for a given word.
-            me.put(StringConstants.INCREMENT_COUNT, (Consumer<String>) w -> ((Map<String, Integer>)me.get(StringConstants.FREQS)).merge(w, 1, (old, one) -> old + one));
+            me.put(StringConstants.INCREMENT_COUNT,
+                    (Consumer<String>) w -> freqsSite.lookup(me).merge(w, 1, (old, one) -> old + one));
             // Add function that produces a sorted list of word frequencies (descending order).
             me.put(StringConstants.SORTED, (Supplier<List<Pair<String, Integer>>>) () -> ((Map<String, Integer>)me.get(StringConstants.FREQS)).entrySet().stream().map(e -> new Pair<>(e.getKey(), e.getValue())).sorted((p1, p2) -> -p1.second().compareTo(p2.second())).collect(Collectors.toList()));
         }
@@ -125,9 +373,12 @@ public class Twelve {
      * Simple helper class that holds string literals.
      */
     static class StringConstants {
-        public static final String DATA = "data";
         public static final String INIT = "init";
         public static final String WORDS = "words";
+        public static final String PATH = "path";
+        public static final String CURSOR = "cursor";
+        public static final String NEXT_CHUNK = "next_chunk";
+        public static final String RESET = "reset";
         public static final String STOP_WORDS = "stop_words";
         public static final String IS_STOP_WORD = "is_stop_word";
         public static final String FREQS = "freqs";
@@ -136,18 +387,31 @@ public class Twelve {
         public static final String TOP25 = "top25";
     }
 
+    /**
+     * The call sites of the main loop.
+     */
+    private static final CallSite<Supplier<String[]>> NEXT_CHUNK_SITE = new CallSite<>(StringConstants.NEXT_CHUNK);
+    private static final CallSite<Function<String, Boolean>> IS_STOP_WORD_SITE =
+            new CallSite<>(StringConstants.IS_STOP_WORD);
+    private static final CallSite<Consumer<String>> INCREMENT_COUNT_SITE =
+            new CallSite<>(StringConstants.INCREMENT_COUNT);
+
     @SuppressWarnings("unchecked")
     public static void main(String[] args) {
         // Initialize the two maps that need to load files.
         ((Consumer<String>) DATA_STORAGE_OBJ.get(StringConstants.INIT)).accept(args[0]);
         ((Runnable) STOP_WORDS_OBJ.get(StringConstants.INIT)).run();
-        // Get and invoke the function that returns the words in the input file
-        // (returned as an array that we then start iterating over).
-        for (String word : ((Supplier<String[]>) DATA_STORAGE_OBJ.get(StringConstants.WORDS)).get()) {
-            // Get and invoke the function that returns if a word is a stop word, providing it with the current word.
-            if (!((Function<String, Boolean>) STOP_WORDS_OBJ.get(StringConstants.IS_STOP_WORD)).apply(word)) {
-                // Not a stop word, so get and invoke the function that increments the word frequency.
-                ((Consumer<String>) WORD_FREQS_OBJ.get(StringConstants.INCREMENT_COUNT)).accept(word);
+        // Get the cursor over the words in the input file, then repeatedly get and invoke its function that returns the
+        // next chunk of words (returned as an array that we then iterate over).
+        Map<String, Object> cursor = (Map<String, Object>) DATA_STORAGE_OBJ.get(StringConstants.CURSOR);
+        for (String[] chunk; (chunk = NEXT_CHUNK_SITE.lookup(cursor).get()).length > 0; ) {
+            for (String word : chunk) {
+                // Get and invoke the function that returns if a word is a stop word, providing it with the current
+                // word. The function is only looked up in the map for the first word (see CallSite).
+                if (!IS_STOP_WORD_SITE.lookup(STOP_WORDS_OBJ).apply(word)) {
+                    // Not a stop word, so get and invoke the function that increments the word frequency.
+                    INCREMENT_COUNT_SITE.lookup(WORD_FREQS_OBJ).accept(word);
+                }
             }
         }
 
@@ -159,7 +423,8 @@ public class Twelve {
         // named self by convention).
         WORD_FREQS_OBJ.put(StringConstants.TOP25, (Consumer<Map<String, Object>>) (me) -> {
             // Get and invoke the sorted function, then create a view of the 25 first entries.
-            List<Pair<String, Integer>> top25 = ((Supplier<List<Pair<String, Integer>>>) me.get(StringConstants.SORTED)).get().subList(0, 25);
+            List<Pair<String, Integer>> top25 =
+                    ((Supplier<List<Pair<String, Integer>>>) me.get(StringConstants.SORTED)).get().subList(0, 25);
             for (Pair<String, Integer> p : top25) {
                 System.out.println(String.format("%s  -  %d", p.first(), p.second()));
             }
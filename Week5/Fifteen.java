@@ -1,10 +1,20 @@
 import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Solution for exercises 15.1 and 15.2 in "Exercises in Programming Style" by Professor C. Lopes. Second (optional)
@@ -13,12 +23,61 @@ import java.util.stream.Stream;
  * {@link WordFrequencyCounter}, and {@link WordFrequencyApp} are essentially direct translations of the book's Python
  * code. The functionality required for exercise 15.2 is implemented in {@link ZWordsTracker}.
  *
+ * <p>
+ *     Words are published in batches ({@code WORD_BATCH} and {@code VALID_WORD_BATCH} events, see {@link WordBatch})
+ *     rather than one event per word. Subscribers of individual {@code WORD} or {@code VALID_WORD} events, such as
+ *     {@link ZWordsTracker}, still receive one event per word of each batch. Such subscribers may subscribe with a
+ *     {@link WordFilter} to only receive the words they care about (see {@link ContentRouter}).
+ * </p>
+ *
+ * <p>
+ *     Run with {@code -Dfifteen.async=true} to dispatch {@code WORD_BATCH} and {@code VALID_WORD_BATCH} events
+ *     asynchronously through a ring buffer (see {@link RingBuffer}) instead of on the publisher's thread.
+ * </p>
+ *
+ * <p>
+ *     Run with {@code -Dfifteen.metrics=true} to have the event manager record metrics per event type and per
+ *     subscriber (see {@link EventBusMetrics}). They are exposed over JMX while running and printed to standard error
+ *     at the end of the run.
+ * </p>
+ *
+ * <p>
+ *     Run with {@code -Dfifteen.statistics=true} to compute a set of corpus statistics, of which exercise 15.2 is one,
+ *     in a single pass (see {@link StatisticsEngine}) and print them to standard error.
+ * </p>
+ *
  * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
  */
 public class Fifteen {
 
+    /**
+     * Name of the system property that enables asynchronous dispatch of {@code WORD_BATCH} and
+     * {@code VALID_WORD_BATCH} events.
+     */
+    public static final String ASYNC_PROPERTY = "fifteen.async";
+
+    /**
+     * Name of the system property that enables the event bus metrics.
+     */
+    public static final String METRICS_PROPERTY = "fifteen.metrics";
+
+    /**
+     * Name of the system property that enables the corpus statistics.
+     */
+    public static final String STATISTICS_PROPERTY = "fifteen.statistics";
+
+    /**
+     * The number of slots in the ring buffer used for asynchronous dispatch. Each slot holds a batch of words.
+     */
+    private static final int RING_SIZE = 1 << 8;
+
+    /**
+     * The (maximum) number of words in a {@code WORD_BATCH} event.
+     */
+    private static final int BATCH_SIZE = 1024;
+
     public static void main(String[] args) {
-        EventManager eventManager = new EventManager();
+        EventManager eventManager = new EventManager(Boolean.getBoolean(METRICS_PROPERTY));
         // No need to retain references here as we will not call these objects directly from here.
         // Garbage collection is prevented as EventManager holds a reference to the objects since the objects register
         // themselves as subscribers of some set of events.
@@ -27,8 +86,27 @@ public class Fifteen {
         new WordFrequencyCounter(eventManager);
         new ZWordsTracker(eventManager); // <--- For exercise 15.2.
         new WordFrequencyApp(eventManager);
+        if (Boolean.getBoolean(STATISTICS_PROPERTY)) {
+            StatisticsEngine statistics = new StatisticsEngine(eventManager);
+            statistics.count("Unique words containing 'z'", WordFilter.contains('z'), true);
+            statistics.count("Words of 10 or more letters", WordFilter.length(10, Integer.MAX_VALUE), false);
+            statistics.count("Unique words ending in 'ing'", WordFilter.matches(".*ing"), true);
+            statistics.countByLetter("Unique words containing each letter", null, true);
+            statistics.countByLength("Words by length", null, false);
+            statistics.countByPrefix("Words by first letter", 1, null, false);
+            statistics.countByPrefix("Unique words by first two letters, of words starting with 'q'", 2,
+                    WordFilter.prefix("q"), true);
+        }
+        if (Boolean.getBoolean(ASYNC_PROPERTY)) {
+            // The stop word filter runs on one thread; the counter and the 'z' words tracker each on their own thread,
+            // in parallel, but only for words that have made it through the stop word filter.
+            eventManager.dispatchAsync(RING_SIZE, EventType.WORD_BATCH, EventType.VALID_WORD_BATCH);
+        }
         // Fire the run event to start the event chain
-        eventManager.publish(new Event(EventType.RUN, args[0]));
+        eventManager.publish(EventType.RUN, args[0]);
+        if (eventManager.mMetrics != null) {
+            eventManager.mMetrics.print(System.err);
+        }
     }
 
     /**
@@ -58,26 +136,32 @@ public class Fifteen {
     }
 
     /**
-     * Models an event.
+     * Models an event: its type and a single payload (e.g., the word of a 'word' event). Events are flyweights that
+     * are owned and reused by the {@link EventManager} such that publishing an event does not allocate anything, so
+     * subscribers must not hold on to an event beyond the handling of it.
      */
     private static class Event {
 
-        private final EventType mType;
-        private final List<Object> mArgs = new ArrayList<>();
+        private EventType mType;
+        private Object mPayload;
+
+        /**
+         * Set while the event is being dispatched, such that a subscriber that publishes an event of the same type does
+         * not overwrite the event that is being dispatched to it.
+         */
+        private boolean mInUse;
 
-        private Event(EventType eventType, Object... eventArgs) {
+        private void set(EventType eventType, Object payload) {
             mType = eventType;
-            for (Object o : eventArgs) {
-                mArgs.add(o);
-            }
+            mPayload = payload;
         }
 
         private EventType getType() {
             return mType;
         }
 
-        private List<Object> getArgs() {
-            return mArgs;
+        private Object getPayload() {
+            return mPayload;
         }
 
     }
@@ -86,30 +170,1112 @@ public class Fifteen {
      * For indicating the type of an {@link Event}.
      */
     private enum EventType {
-        LOAD, START, WORD,  RUN, VALID_WORD, EOF, PRINT
+        LOAD, START, WORD,  RUN, VALID_WORD, EOF, PRINT,
+        WORD_BATCH(WORD), VALID_WORD_BATCH(VALID_WORD);
+
+        /**
+         * Cached as {@link #values()} returns a new array on each invocation.
+         */
+        private static final EventType[] VALUES = values();
+
+        /**
+         * For batch event types (whose payload is a {@link WordBatch}), the type of the events of the individual
+         * words; {@code null} for other event types.
+         */
+        private final EventType mElementType;
+
+        EventType() {
+            this(null);
+        }
+
+        EventType(EventType elementType) {
+            mElementType = elementType;
+        }
+
+        /**
+         * @return {@code true} if the payload of events of this type is a single word, i.e., if this is the element
+         *         type of a batch event type.
+         */
+        private boolean hasWordPayload() {
+            for (EventType eventType : VALUES) {
+                if (eventType.mElementType == this) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     /**
-     * Provides the publish/subscribe infrastructure.
+     * The payload of a batch event: a slice of an array of words. Batches are not copied when dispatched, so neither
+     * the publisher nor the subscribers may modify the array once the batch is published.
+     */
+    private static class WordBatch {
+
+        private final String[] mWords;
+        private final int mFrom;
+        private final int mTo;
+
+        /**
+         * @param words The array of words.
+         * @param from The index of the first word of the batch (inclusive).
+         * @param to The index of the last word of the batch (exclusive).
+         */
+        private WordBatch(String[] words, int from, int to) {
+            mWords = words;
+            mFrom = from;
+            mTo = to;
+        }
+
+        private int size() {
+            return mTo - mFrom;
+        }
+
+        private String get(int index) {
+            return mWords[mFrom + index];
+        }
+    }
+
+    /**
+     * Provides the publish/subscribe infrastructure. By default, events are dispatched synchronously on the
+     * publisher's thread. See {@link #dispatchAsync(int, EventType...)} for asynchronous dispatch. The subscriptions
+     * are frozen into arrays on the first publish (or on the switch to asynchronous dispatch), after which no more
+     * subscribers can subscribe. When frozen, each subscriber of an element event type (e.g., {@code WORD}) is also
+     * subscribed to the corresponding batch event type (e.g., {@code WORD_BATCH}) through an adapter that delivers
+     * the words of each batch one event at a time.
      */
     private static class EventManager {
 
-        private final Map<EventType, List<Consumer<Event>>> mSubscriptions = new HashMap<>();
+        /**
+         * The subscriptions while subscribers are being wired up; {@code null} once frozen.
+         */
+        private Map<EventType, List<Consumer<Event>>> mSubscriptions = new EnumMap<>(EventType.class);
+
+        /**
+         * The content-based subscriptions while subscribers are being wired up; {@code null} once frozen.
+         */
+        private Map<EventType, List<Pair<WordFilter, Consumer<Event>>>> mFilteredSubscriptions =
+                new EnumMap<>(EventType.class);
+
+        /**
+         * The frozen subscriptions; {@code null} until frozen.
+         */
+        private EnumMap<EventType, Consumer<Event>[]> mSubscribers;
+
+        /**
+         * Per publishing thread, a flyweight event for each event type (indexed by ordinal).
+         */
+        private final ThreadLocal<Event[]> mFlyweights = ThreadLocal.withInitial(() -> {
+            Event[] events = new Event[EventType.VALUES.length];
+            for (int i = 0; i < events.length; i++) {
+                events[i] = new Event();
+            }
+            return events;
+        });
+
+        /**
+         * Dispatches the events of some event types asynchronously; {@code null} if all events are dispatched
+         * synchronously.
+         */
+        private RingBuffer mRing;
+
+        /**
+         * The metrics of the event bus; {@code null} if disabled.
+         */
+        private final EventBusMetrics mMetrics;
+
+        /**
+         * @param metered {@code true} if the event manager should record metrics (see {@link EventBusMetrics}).
+         */
+        private EventManager(boolean metered) {
+            mMetrics = metered ? new EventBusMetrics() : null;
+        }
 
         private void subscribe(EventType eventType, Consumer<Event> consumer) {
-            List<Consumer<Event>> consumers = mSubscriptions.getOrDefault(eventType, new ArrayList<>());
-            consumers.add(consumer);
-            mSubscriptions.put(eventType, consumers);
+            if (mSubscriptions == null) {
+                throw new IllegalStateException("Cannot subscribe once events have been published");
+            }
+            if (mMetrics != null) {
+                consumer = mMetrics.meter(eventType, subscriberName(), consumer);
+            }
+            mSubscriptions.computeIfAbsent(eventType, t -> new ArrayList<>()).add(consumer);
         }
 
-        private void publish(Event event) {
-            List<Consumer<Event>> consumers = mSubscriptions.get(event.getType());
-            if (consumers != null) {
-                consumers.forEach(c -> c.accept(event));
+        /**
+         * Subscribes to the events of an event type whose payload is a word, but only to those whose word passes a
+         * filter.
+         * @param eventType The event type, e.g., {@code VALID_WORD}.
+         * @param filter The filter.
+         * @param consumer The subscriber.
+         */
+        private void subscribe(EventType eventType, WordFilter filter, Consumer<Event> consumer) {
+            if (mFilteredSubscriptions == null) {
+                throw new IllegalStateException("Cannot subscribe once events have been published");
+            }
+            if (!eventType.hasWordPayload()) {
+                throw new IllegalArgumentException(eventType + " events do not carry a word");
+            }
+            if (mMetrics != null) {
+                consumer = mMetrics.meter(eventType, subscriberName() + " " + filter, consumer);
+            }
+            mFilteredSubscriptions.computeIfAbsent(eventType, t -> new ArrayList<>()).add(new Pair<>(filter, consumer));
+        }
+
+        /**
+         * Subscribes to the batches of a batch event type as a whole.
+         * @param batchType The batch event type, e.g., {@code WORD_BATCH}.
+         * @param consumer The subscriber.
+         */
+        private void subscribeBatch(EventType batchType, Consumer<WordBatch> consumer) {
+            if (batchType.mElementType == null) {
+                throw new IllegalArgumentException(batchType + " is not a batch event type");
+            }
+            subscribe(batchType, event -> consumer.accept((WordBatch) event.getPayload()));
+        }
+
+        /**
+         * @return The simple name of the class that is subscribing, i.e., of the closest caller outside of this class.
+         *         Only called while wiring up, so the cost of walking the stack does not matter.
+         */
+        private static String subscriberName() {
+            for (StackTraceElement frame : new Throwable().getStackTrace()) {
+                if (!frame.getClassName().equals(EventManager.class.getName())) {
+                    String className = frame.getClassName();
+                    return className.substring(Math.max(className.lastIndexOf('.'), className.lastIndexOf('$')) + 1);
+                }
+            }
+            return "?";
+        }
+
+        /**
+         * Freezes the subscriptions (if not already frozen).
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private void freeze() {
+            if (mSubscribers != null) {
+                return;
+            }
+            // All content-based subscribers of an event type are served by a single subscriber that routes each word to
+            // the subscribers whose filters it passes.
+            mFilteredSubscriptions.forEach((eventType, subscriptions) ->
+                    mSubscriptions.computeIfAbsent(eventType, t -> new ArrayList<>()).
+                            add(new ContentRouter(subscriptions)));
+            mFilteredSubscriptions = null;
+            mSubscribers = new EnumMap<>(EventType.class);
+            for (EventType eventType : EventType.VALUES) {
+                List<Consumer<Event>> consumers =
+                        new ArrayList<>(mSubscriptions.getOrDefault(eventType, Collections.emptyList()));
+                if (eventType.mElementType != null) {
+                    for (Consumer<Event> consumer : mSubscriptions.getOrDefault(eventType.mElementType,
+                            Collections.emptyList())) {
+                        consumers.add(perElement(eventType.mElementType, consumer));
+                    }
+                }
+                mSubscribers.put(eventType, consumers.toArray(new Consumer[0]));
+            }
+            mSubscriptions = null;
+            if (mMetrics != null) {
+                mMetrics.register();
+            }
+        }
+
+        /**
+         * Adapts a subscriber of an element event type to the corresponding batch event type.
+         * @param elementType The element event type, e.g., {@code WORD}.
+         * @param consumer The subscriber of the element event type.
+         * @return A subscriber of the batch event type that passes each word of a batch to {@code consumer}.
+         */
+        private Consumer<Event> perElement(EventType elementType, Consumer<Event> consumer) {
+            return batchEvent -> {
+                WordBatch batch = (WordBatch) batchEvent.getPayload();
+                Event event = acquire(elementType);
+                try {
+                    for (int i = 0; i < batch.size(); i++) {
+                        event.set(elementType, batch.get(i));
+                        consumer.accept(event);
+                    }
+                } finally {
+                    release(event);
+                }
+            };
+        }
+
+        /**
+         * Switches to asynchronous dispatch of events of the types in {@code pipeline} (see {@link RingBuffer}). Events
+         * of the first type must be published from a single thread, and events of each following type must only be
+         * published by (at most one) subscriber of the preceding type. Events of other types are still dispatched
+         * synchronously, but only once all asynchronously dispatched events published before them have been processed,
+         * so, e.g., the subscribers of 'EOF' events see the effects of all 'valid word' events. Must be called after
+         * all subscribers have subscribed.
+         * @param ringSize The number of slots in the ring buffer. Must be a power of two.
+         * @param pipeline The event types to dispatch asynchronously, in pipeline order.
+         */
+        private void dispatchAsync(int ringSize, EventType... pipeline) {
+            freeze();
+            mRing = new RingBuffer(ringSize, pipeline, mSubscribers, mMetrics);
+        }
+
+        private void publish(EventType eventType) {
+            publish(eventType, null);
+        }
+
+        private void publish(EventType eventType, Object payload) {
+            freeze();
+            if (mMetrics != null) {
+                mMetrics.mEventTypes.get(eventType).mPublished.increment();
+                if (eventType.mElementType != null) {
+                    mMetrics.mEventTypes.get(eventType.mElementType).mPublished.add(((WordBatch) payload).size());
+                }
+            }
+            if (mRing != null) {
+                if (mRing.stageOf(eventType) >= 0) {
+                    mRing.publish(eventType, payload);
+                    return;
+                }
+                if (!(Thread.currentThread() instanceof EventProcessor)) {
+                    mRing.drain();
+                }
+            }
+            Event event = acquire(eventType);
+            event.set(eventType, payload);
+            try {
+                for (Consumer<Event> consumer : mSubscribers.get(eventType)) {
+                    consumer.accept(event);
+                }
+            } finally {
+                release(event);
+            }
+        }
+
+        /**
+         * @param eventType The type of event to dispatch.
+         * @return The calling thread's flyweight event for {@code eventType}, or a new event if the flyweight is
+         *         already being dispatched (i.e., a subscriber publishes an event of the same type as the one being
+         *         dispatched to it).
+         */
+        private Event acquire(EventType eventType) {
+            Event event = mFlyweights.get()[eventType.ordinal()];
+            if (event.mInUse) {
+                event = new Event();
+            }
+            event.mInUse = true;
+            return event;
+        }
+
+        private void release(Event event) {
+            event.mInUse = false;
+            event.set(null, null);
+        }
+    }
+
+    /**
+     * The metrics of an {@link EventManager}: per event type, the number of published events and, for asynchronously
+     * dispatched event types, the queue lag (the time from publishing a slot of the ring buffer until a processor
+     * starts handling it); per subscriber, the number of delivered events and the time spent handling them (including
+     * the handling of events that the subscriber publishes synchronously). The words of published batches are also
+     * counted as published events of the element event type, and subscribers of individual words are metered per word.
+     * Times are recorded in {@link Histogram}s. The metrics are exposed as MXBeans in the {@code Fifteen} JMX domain
+     * and can be printed as a report.
+     */
+    private static class EventBusMetrics {
+
+        private final EnumMap<EventType, EventTypeMetrics> mEventTypes = new EnumMap<>(EventType.class);
+        private final List<MeteredSubscriber> mSubscribers = new ArrayList<>();
+        private final Map<String, Integer> mNameCounts = new HashMap<>();
+
+        private EventBusMetrics() {
+            for (EventType eventType : EventType.VALUES) {
+                mEventTypes.put(eventType, new EventTypeMetrics());
+            }
+        }
+
+        /**
+         * @param eventType The event type the subscriber subscribes to.
+         * @param name The name of the subscriber.
+         * @param consumer The subscriber.
+         * @return A subscriber that meters {@code consumer}.
+         */
+        private Consumer<Event> meter(EventType eventType, String name, Consumer<Event> consumer) {
+            // Disambiguate multiple subscriptions of the same class to the same event type.
+            int n = mNameCounts.merge(eventType + " " + name, 1, Integer::sum);
+            MeteredSubscriber subscriber = new MeteredSubscriber(eventType, n == 1 ? name : name + " #" + n, consumer);
+            mSubscribers.add(subscriber);
+            return subscriber;
+        }
+
+        /**
+         * Registers the MXBeans with the platform MBean server.
+         */
+        private void register() {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                for (Map.Entry<EventType, EventTypeMetrics> e : mEventTypes.entrySet()) {
+                    server.registerMBean(e.getValue(), new ObjectName("Fifteen:type=EventType,name=" + e.getKey()));
+                }
+                for (MeteredSubscriber subscriber : mSubscribers) {
+                    server.registerMBean(subscriber, new ObjectName("Fifteen:type=Subscriber,event="
+                            + subscriber.mEventType + ",name=" + ObjectName.quote(subscriber.mName)));
+                }
+            } catch (JMException jme) {
+                // Metrics are merely a diagnostic aid, so keep running without JMX.
+                System.err.println("Could not register event bus MXBeans: " + jme);
+            }
+        }
+
+        /**
+         * Prints a report of the metrics, with the subscribers ordered by the total time spent handling events.
+         * @param out Where to print.
+         */
+        private void print(PrintStream out) {
+            out.println("Event types:");
+            mEventTypes.forEach((eventType, metrics) -> {
+                String line = String.format("  %-18s %,14d published", eventType, metrics.getPublished());
+                if (metrics.mQueueLag.count() > 0) {
+                    line += "  queue lag " + metrics.mQueueLag;
+                }
+                out.println(line);
+            });
+            out.println("Subscribers:");
+            List<MeteredSubscriber> subscribers = new ArrayList<>(mSubscribers);
+            subscribers.sort(Comparator.comparingLong((MeteredSubscriber s) -> s.mHandlerTime.sum()).reversed());
+            for (MeteredSubscriber subscriber : subscribers) {
+                out.println(String.format("  %-18s %-32s %,14d delivered %11.1f ms  handler %s", subscriber.mEventType,
+                        subscriber.mName, subscriber.getDelivered(), subscriber.mHandlerTime.sum() / 1e6,
+                        subscriber.mHandlerTime));
             }
         }
     }
 
+    /**
+     * The MXBean interface of the metrics of an event type. Times are in nanoseconds.
+     */
+    public interface EventTypeMetricsMXBean {
+
+        long getPublished();
+
+        long getQueueLagSamples();
+
+        double getQueueLagMean();
+
+        long getQueueLagP50();
+
+        long getQueueLagP99();
+
+        long getQueueLagMax();
+    }
+
+    /**
+     * The metrics of an event type.
+     */
+    private static class EventTypeMetrics implements EventTypeMetricsMXBean {
+
+        private final LongAdder mPublished = new LongAdder();
+        private final Histogram mQueueLag = new Histogram();
+
+        @Override
+        public long getPublished() {
+            return mPublished.sum();
+        }
+
+        @Override
+        public long getQueueLagSamples() {
+            return mQueueLag.count();
+        }
+
+        @Override
+        public double getQueueLagMean() {
+            return mQueueLag.mean();
+        }
+
+        @Override
+        public long getQueueLagP50() {
+            return mQueueLag.percentile(0.5);
+        }
+
+        @Override
+        public long getQueueLagP99() {
+            return mQueueLag.percentile(0.99);
+        }
+
+        @Override
+        public long getQueueLagMax() {
+            return mQueueLag.max();
+        }
+    }
+
+    /**
+     * The MXBean interface of the metrics of a subscriber. Times are in nanoseconds.
+     */
+    public interface SubscriberMetricsMXBean {
+
+        long getDelivered();
+
+        long getHandlerTimeTotal();
+
+        double getHandlerTimeMean();
+
+        long getHandlerTimeP50();
+
+        long getHandlerTimeP99();
+
+        long getHandlerTimeMax();
+    }
+
+    /**
+     * Meters a subscriber by timing each delivery of an event to it.
+     */
+    private static class MeteredSubscriber implements Consumer<Event>, SubscriberMetricsMXBean {
+
+        private final EventType mEventType;
+        private final String mName;
+        private final Consumer<Event> mConsumer;
+        private final Histogram mHandlerTime = new Histogram();
+
+        private MeteredSubscriber(EventType eventType, String name, Consumer<Event> consumer) {
+            mEventType = eventType;
+            mName = name;
+            mConsumer = consumer;
+        }
+
+        @Override
+        public void accept(Event event) {
+            long start = System.nanoTime();
+            try {
+                mConsumer.accept(event);
+            } finally {
+                mHandlerTime.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public long getDelivered() {
+            return mHandlerTime.count();
+        }
+
+        @Override
+        public long getHandlerTimeTotal() {
+            return mHandlerTime.sum();
+        }
+
+        @Override
+        public double getHandlerTimeMean() {
+            return mHandlerTime.mean();
+        }
+
+        @Override
+        public long getHandlerTimeP50() {
+            return mHandlerTime.percentile(0.5);
+        }
+
+        @Override
+        public long getHandlerTimeP99() {
+            return mHandlerTime.percentile(0.99);
+        }
+
+        @Override
+        public long getHandlerTimeMax() {
+            return mHandlerTime.max();
+        }
+    }
+
+    /**
+     * A histogram of non-negative durations (in nanoseconds) with one bucket per power of two, such that recording a
+     * value takes a few uncontended atomic operations and no allocation. Percentiles are approximate: they are reported
+     * as the upper bound of the bucket they fall in (at most twice the actual value), capped by the maximum.
+     */
+    private static class Histogram {
+
+        /**
+         * Bucket {@code i > 0} counts the values in {@code [2^(i-1), 2^i)}; bucket 0 counts zeros.
+         */
+        private final AtomicLongArray mBuckets = new AtomicLongArray(Long.SIZE + 1);
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        private void record(long value) {
+            value = Math.max(value, 0);
+            mBuckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // Retry.
+            }
+        }
+
+        private long count() {
+            long count = 0;
+            for (int i = 0; i < mBuckets.length(); i++) {
+                count += mBuckets.get(i);
+            }
+            return count;
+        }
+
+        private long sum() {
+            return mSum.get();
+        }
+
+        private long max() {
+            return mMax.get();
+        }
+
+        private double mean() {
+            long count = count();
+            return count == 0 ? 0 : sum() / (double) count;
+        }
+
+        /**
+         * @param p The percentile, in {@code (0, 1]}.
+         * @return The (approximate) value below which a fraction {@code p} of the recorded values fall.
+         */
+        private long percentile(double p) {
+            long target = (long) Math.ceil(p * count());
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length(); i++) {
+                seen += mBuckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(i == 0 ? 0 : i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1, max());
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean / p50 / p99 / max %.1f / %.1f / %.1f / %.1f us", mean() / 1e3,
+                    percentile(0.5) / 1e3, percentile(0.99) / 1e3, max() / 1e3);
+        }
+    }
+
+    /**
+     * A declarative predicate on a word, for content-based subscriptions (see
+     * {@link EventManager#subscribe(EventType, WordFilter, Consumer)}). Being declarative rather than arbitrary code,
+     * filters can be indexed by the {@link ContentRouter} such that a word is only tested against the filters it may
+     * pass.
+     */
+    private static class WordFilter {
+
+        private enum Kind {
+            CONTAINS, PREFIX, LENGTH, REGEX
+        }
+
+        private final Kind mKind;
+        private final char mChar;
+        private final String mPrefix;
+        private final int mMinLength;
+        private final int mMaxLength;
+        private final Pattern mPattern;
+
+        private WordFilter(Kind kind, char c, String prefix, int minLength, int maxLength, Pattern pattern) {
+            mKind = kind;
+            mChar = c;
+            mPrefix = prefix;
+            mMinLength = minLength;
+            mMaxLength = maxLength;
+            mPattern = pattern;
+        }
+
+        /**
+         * @param c A character.
+         * @return A filter that passes the words that contain {@code c}.
+         */
+        private static WordFilter contains(char c) {
+            return new WordFilter(Kind.CONTAINS, c, null, 0, 0, null);
+        }
+
+        /**
+         * @param prefix A prefix.
+         * @return A filter that passes the words that start with {@code prefix}.
+         */
+        private static WordFilter prefix(String prefix) {
+            return new WordFilter(Kind.PREFIX, '\0', prefix, 0, 0, null);
+        }
+
+        /**
+         * @param minLength The minimum length (inclusive).
+         * @param maxLength The maximum length (inclusive).
+         * @return A filter that passes the words whose length is in the range {@code [minLength, maxLength]}.
+         */
+        private static WordFilter length(int minLength, int maxLength) {
+            return new WordFilter(Kind.LENGTH, '\0', null, minLength, maxLength, null);
+        }
+
+        /**
+         * @param regex A regular expression, compiled once here.
+         * @return A filter that passes the words that match {@code regex} in their entirety.
+         */
+        private static WordFilter matches(String regex) {
+            return new WordFilter(Kind.REGEX, '\0', null, 0, 0, Pattern.compile(regex));
+        }
+
+        /**
+         * Tests a word whose character classes have already been computed, which decides most 'contains' filters
+         * without looking at the word again.
+         * @param word The word.
+         * @param classes The character classes of the word (see {@link ContentRouter#classesOf(String)}).
+         * @return {@code true} if the word passes the filter.
+         */
+        private boolean test(String word, long classes) {
+            if (mKind == Kind.CONTAINS) {
+                int cls = ContentRouter.classOf(mChar);
+                if ((classes & 1L << cls) == 0) {
+                    return false;
+                }
+                if (cls < ContentRouter.OTHER_ASCII_CLASS) {
+                    return true;
+                }
+            }
+            return test(word);
+        }
+
+        private boolean test(String word) {
+            switch (mKind) {
+                case CONTAINS:
+                    return word.indexOf(mChar) >= 0;
+                case PREFIX:
+                    return word.startsWith(mPrefix);
+                case LENGTH:
+                    return word.length() >= mMinLength && word.length() <= mMaxLength;
+                default:
+                    return mPattern.matcher(word).matches();
+            }
+        }
+
+        @Override
+        public String toString() {
+            switch (mKind) {
+                case CONTAINS:
+                    return "contains '" + mChar + "'";
+                case PREFIX:
+                    return "prefix '" + mPrefix + "'";
+                case LENGTH:
+                    return "length " + mMinLength + ".." + mMaxLength;
+                default:
+                    return "matches '" + mPattern + "'";
+            }
+        }
+    }
+
+    /**
+     * Routes the events of an event type whose payload is a word to the content-based subscribers whose
+     * {@link WordFilter}s the word passes. Each character is mapped to one of 64 character classes (one per lower
+     * case letter, digit, and upper case letter, plus one for all other ASCII and one for all non-ASCII characters),
+     * so a word's characters are summarized by a single {@code long} bitmap. The subscribers that filter on containing
+     * a character are indexed by its class, so one bitmap intersection finds all of them that a word may be routed to,
+     * e.g., all the trackers keyed on one letter. Subscribers that filter on a prefix are indexed by the class of its
+     * first character. The remaining subscribers' filters are tested one by one. Subscribers receive the words in
+     * order, but the subscribers of a word are not necessarily invoked in the order they subscribed.
+     */
+    private static class ContentRouter implements Consumer<Event> {
+
+        private static final int CLASS_COUNT = 64;
+        private static final int OTHER_ASCII_CLASS = 62;
+        private static final int NON_ASCII_CLASS = 63;
+
+        /**
+         * The class of each ASCII character.
+         */
+        private static final byte[] CLASS_OF = new byte[128];
+
+        static {
+            Arrays.fill(CLASS_OF, (byte) OTHER_ASCII_CLASS);
+            for (char c = 'a'; c <= 'z'; c++) {
+                CLASS_OF[c] = (byte) (c - 'a');
+            }
+            for (char c = '0'; c <= '9'; c++) {
+                CLASS_OF[c] = (byte) (26 + c - '0');
+            }
+            for (char c = 'A'; c <= 'Z'; c++) {
+                CLASS_OF[c] = (byte) (36 + c - 'A');
+            }
+        }
+
+        /**
+         * The subscribers that filter on containing a character, indexed by the class of that character.
+         */
+        private final Filtered[][] mContains = new Filtered[CLASS_COUNT][];
+
+        /**
+         * The classes for which {@link #mContains} has any subscribers.
+         */
+        private long mContainsClasses;
+
+        /**
+         * The subscribers that filter on a prefix, indexed by the class of its first character.
+         */
+        private final Filtered[][] mPrefix = new Filtered[CLASS_COUNT][];
+
+        /**
+         * The subscribers whose filters are not indexed.
+         */
+        private final Filtered[] mOthers;
+
+        private ContentRouter(List<Pair<WordFilter, Consumer<Event>>> subscriptions) {
+            List<List<Filtered>> contains = new ArrayList<>();
+            List<List<Filtered>> prefix = new ArrayList<>();
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                contains.add(new ArrayList<>());
+                prefix.add(new ArrayList<>());
+            }
+            List<Filtered> others = new ArrayList<>();
+            for (Pair<WordFilter, Consumer<Event>> subscription : subscriptions) {
+                WordFilter filter = subscription.first();
+                Filtered filtered = new Filtered(filter, subscription.second());
+                if (filter.mKind == WordFilter.Kind.CONTAINS) {
+                    contains.get(classOf(filter.mChar)).add(filtered);
+                } else if (filter.mKind == WordFilter.Kind.PREFIX && !filter.mPrefix.isEmpty()) {
+                    prefix.get(classOf(filter.mPrefix.charAt(0))).add(filtered);
+                } else {
+                    others.add(filtered);
+                }
+            }
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                if (!contains.get(i).isEmpty()) {
+                    mContains[i] = contains.get(i).toArray(new Filtered[0]);
+                    mContainsClasses |= 1L << i;
+                }
+                if (!prefix.get(i).isEmpty()) {
+                    mPrefix[i] = prefix.get(i).toArray(new Filtered[0]);
+                }
+            }
+            mOthers = others.toArray(new Filtered[0]);
+        }
+
+        private static int classOf(char c) {
+            return c < 128 ? CLASS_OF[c] : NON_ASCII_CLASS;
+        }
+
+        /**
+         * @param word A word.
+         * @return The bitmap of the classes of the characters of {@code word}.
+         */
+        private static long classesOf(String word) {
+            long classes = 0;
+            for (int i = 0; i < word.length(); i++) {
+                classes |= 1L << classOf(word.charAt(i));
+            }
+            return classes;
+        }
+
+        @Override
+        public void accept(Event event) {
+            String word = (String) event.getPayload();
+            if (mContainsClasses != 0) {
+                for (long hits = classesOf(word) & mContainsClasses; hits != 0; hits &= hits - 1) {
+                    int cls = Long.numberOfTrailingZeros(hits);
+                    // All characters of the other classes share the class, so only those need to be tested further.
+                    boolean exact = cls < OTHER_ASCII_CLASS;
+                    for (Filtered filtered : mContains[cls]) {
+                        filtered.deliver(event, word, exact);
+                    }
+                }
+            }
+            if (!word.isEmpty()) {
+                Filtered[] prefix = mPrefix[classOf(word.charAt(0))];
+                if (prefix != null) {
+                    for (Filtered filtered : prefix) {
+                        filtered.deliver(event, word, false);
+                    }
+                }
+            }
+            for (Filtered filtered : mOthers) {
+                filtered.deliver(event, word, false);
+            }
+        }
+
+        /**
+         * A content-based subscriber.
+         */
+        private static class Filtered {
+
+            private final WordFilter mFilter;
+            private final Consumer<Event> mConsumer;
+
+            private Filtered(WordFilter filter, Consumer<Event> consumer) {
+                mFilter = filter;
+                mConsumer = consumer;
+            }
+
+            /**
+             * @param event The event.
+             * @param word The word of the event.
+             * @param passed {@code true} if the word is already known to pass the filter.
+             */
+            private void deliver(Event event, String word, boolean passed) {
+                if (passed || mFilter.test(word)) {
+                    mConsumer.accept(event);
+                }
+            }
+        }
+    }
+
+    /**
+     * A Disruptor-style ring buffer for asynchronous dispatch of events. The event types that are dispatched through
+     * the ring buffer form a pipeline of stages, e.g., {@code WORD -> VALID_WORD}. Events of the first type are written
+     * to a preallocated slot of the ring buffer by a single publishing thread. Each subscriber of an event type in the
+     * pipeline (including the per-word adapters of subscribers of individual words, see {@link EventManager}) is run
+     * by its own {@link EventProcessor} thread that processes the slots in order. When a subscriber of
+     * stage {@code k} publishes an event of the type of stage {@code k + 1}, that event is stored in the slot being
+     * processed rather than dispatched. The processors of stage {@code k + 1} only process a slot once all processors
+     * of stage {@code k} are done with it (a sequence barrier), so, e.g., a batch is stop word filtered before it is
+     * counted, whereas the subscribers within a stage (e.g., the counter and the 'z' words tracker) run in parallel.
+     */
+    private static class RingBuffer {
+
+        private final EventType[] mStages;
+
+        /**
+         * The stage of each event type (indexed by ordinal); -1 for event types that are not part of the pipeline.
+         */
+        private final int[] mStageOf = new int[EventType.VALUES.length];
+
+        /**
+         * The slots of the ring buffer. A slot holds one (preallocated) event per stage. The type of an event is
+         * {@code null} if the event was not published, e.g., because the word was a stop word.
+         */
+        private final Event[][] mSlots;
+        private final int mMask;
+
+        /**
+         * The sequence number of the last published slot. Only written by the publishing thread.
+         */
+        private final AtomicLong mCursor = new AtomicLong(-1);
+
+        /**
+         * All processors, ordered by stage.
+         */
+        private final List<EventProcessor> mProcessors = new ArrayList<>();
+
+        /**
+         * The first failure of any processor, if any.
+         */
+        private volatile Throwable mFailure;
+
+        /**
+         * The time (as per {@link System#nanoTime()}) at which each slot was published; {@code null} if not metered.
+         */
+        private final long[] mPublishedAt;
+
+        /**
+         * The queue lag histogram of each stage; {@code null} if not metered.
+         */
+        private final Histogram[] mQueueLag;
+
+        /**
+         * Creates the ring buffer and starts its processors.
+         * @param size The number of slots. Must be a power of two.
+         * @param stages The event types of the stages of the pipeline.
+         * @param subscribers The subscribers of each event type.
+         * @param metrics Where to record the queue lag of each stage; {@code null} if not metered.
+         */
+        private RingBuffer(int size, EventType[] stages, Map<EventType, Consumer<Event>[]> subscribers,
+                           EventBusMetrics metrics) {
+            if (Integer.bitCount(size) != 1) {
+                throw new IllegalArgumentException("Ring buffer size must be a power of two, was " + size);
+            }
+            mStages = stages;
+            Arrays.fill(mStageOf, -1);
+            for (int stage = 0; stage < stages.length; stage++) {
+                mStageOf[stages[stage].ordinal()] = stage;
+            }
+            mSlots = new Event[size][stages.length];
+            for (Event[] slot : mSlots) {
+                for (int stage = 0; stage < slot.length; stage++) {
+                    slot[stage] = new Event();
+                }
+            }
+            mMask = size - 1;
+            if (metrics != null) {
+                mPublishedAt = new long[size];
+                mQueueLag = new Histogram[stages.length];
+                for (int stage = 0; stage < stages.length; stage++) {
+                    mQueueLag[stage] = metrics.mEventTypes.get(stages[stage]).mQueueLag;
+                }
+            } else {
+                mPublishedAt = null;
+                mQueueLag = null;
+            }
+            // Each stage waits for the closest preceding stage that has any processors (or for the publisher).
+            AtomicLong[] barrier = { mCursor };
+            for (int stage = 0; stage < stages.length; stage++) {
+                List<AtomicLong> sequences = new ArrayList<>();
+                for (Consumer<Event> subscriber : subscribers.get(stages[stage])) {
+                    EventProcessor processor = new EventProcessor(this, stage, mProcessors.size(), subscriber, barrier);
+                    mProcessors.add(processor);
+                    sequences.add(processor.mSequence);
+                }
+                if (!sequences.isEmpty()) {
+                    barrier = sequences.toArray(new AtomicLong[0]);
+                }
+            }
+            for (EventProcessor processor : mProcessors) {
+                processor.start();
+            }
+        }
+
+        private int stageOf(EventType type) {
+            return mStageOf[type.ordinal()];
+        }
+
+        /**
+         * Publishes an event of one of the types of the pipeline by writing it into the preallocated event of the
+         * appropriate slot and stage.
+         * @param eventType The type of the event.
+         * @param payload The payload of the event.
+         */
+        private void publish(EventType eventType, Object payload) {
+            int stage = stageOf(eventType);
+            Thread thread = Thread.currentThread();
+            if (thread instanceof EventProcessor && ((EventProcessor) thread).mRing == this) {
+                EventProcessor processor = (EventProcessor) thread;
+                if (stage != processor.mStage + 1) {
+                    throw new IllegalStateException(eventType + " events cannot be published by subscribers of "
+                            + mStages[processor.mStage] + " events");
+                }
+                // Picked up by the next stage once this processor is done with the slot.
+                mSlots[(int) (processor.mCurrent & mMask)][stage].set(eventType, payload);
+                return;
+            }
+            if (stage != 0) {
+                throw new IllegalStateException(eventType + " events can only be published by subscribers of "
+                        + mStages[stage - 1] + " events");
+            }
+            long next = mCursor.get() + 1;
+            // Wait for the slowest processor to release the slot.
+            for (int idle = 0; next - mSlots.length > minSequence(); idle++) {
+                idle(idle);
+            }
+            Event[] slot = mSlots[(int) (next & mMask)];
+            slot[0].set(eventType, payload);
+            for (int i = 1; i < slot.length; i++) {
+                slot[i].set(null, null);
+            }
+            if (mPublishedAt != null) {
+                mPublishedAt[(int) (next & mMask)] = System.nanoTime();
+            }
+            // Volatile write: makes the slot visible to the processors of the first stage.
+            mCursor.set(next);
+        }
+
+        /**
+         * Waits until all processors have processed all published events.
+         */
+        private void drain() {
+            long cursor = mCursor.get();
+            for (int idle = 0; minSequence() < cursor; idle++) {
+                idle(idle);
+            }
+            checkFailure();
+        }
+
+        private long minSequence() {
+            checkFailure();
+            long min = mCursor.get();
+            for (EventProcessor processor : mProcessors) {
+                min = Math.min(min, processor.mSequence.get());
+            }
+            return min;
+        }
+
+        private void checkFailure() {
+            if (mFailure != null) {
+                throw new RuntimeException("Asynchronous event subscriber failed", mFailure);
+            }
+        }
+
+        /**
+         * Backs off while waiting for other threads: spin first, then yield, then sleep for increasingly long.
+         * @param idle The number of times the caller has backed off so far.
+         */
+        private static void idle(int idle) {
+            if (idle < 100) {
+                // Spin.
+            } else if (idle < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(idle < 1000 ? 1_000 : 1_000_000);
+            }
+        }
+    }
+
+    /**
+     * Runs a single subscriber of an event type in the pipeline of a {@link RingBuffer} on its own thread.
+     */
+    private static class EventProcessor extends Thread {
+
+        private final RingBuffer mRing;
+        private final int mStage;
+        private final Consumer<Event> mSubscriber;
+
+        /**
+         * The sequences this processor must not overtake: those of the processors of the preceding stage.
+         */
+        private final AtomicLong[] mBarrier;
+
+        /**
+         * The sequence number of the last slot this processor is done with.
+         */
+        private final AtomicLong mSequence = new AtomicLong(-1);
+
+        /**
+         * The sequence number of the slot this processor is currently processing. Only accessed by this thread.
+         */
+        private long mCurrent;
+
+        private EventProcessor(RingBuffer ring, int stage, int index, Consumer<Event> subscriber,
+                               AtomicLong[] barrier) {
+            super("Fifteen-" + ring.mStages[stage] + "-" + index);
+            // Do not keep the JVM alive once the main thread is done.
+            setDaemon(true);
+            mRing = ring;
+            mStage = stage;
+            mSubscriber = subscriber;
+            mBarrier = barrier;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long next = 0;
+                // Stop as soon as any processor failed; the failure is reported once to the publisher.
+                while (mRing.mFailure == null) {
+                    long available;
+                    for (int idle = 0; (available = min(mBarrier)) < next; idle++) {
+                        if (mRing.mFailure != null) {
+                            return;
+                        }
+                        RingBuffer.idle(idle);
+                    }
+                    // Process all available slots as a batch before advancing the sequence.
+                    for (mCurrent = next; mCurrent <= available; mCurrent++) {
+                        Event event = mRing.mSlots[(int) (mCurrent & mRing.mMask)][mStage];
+                        if (event.getType() != null) {
+                            if (mRing.mQueueLag != null) {
+                                mRing.mQueueLag[mStage].record(
+                                        System.nanoTime() - mRing.mPublishedAt[(int) (mCurrent & mRing.mMask)]);
+                            }
+                            mSubscriber.accept(event);
+                        }
+                    }
+                    // Ordered write: makes the events this processor published visible to the next stage.
+                    mSequence.lazySet(available);
+                    next = available + 1;
+                }
+            } catch (Throwable t) {
+                // Keep the sequence where it is so that later stages do not run ahead into stale slots; everybody
+                // waiting for this processor checks for the failure instead.
+                mRing.mFailure = t;
+            }
+        }
+
+        private static long min(AtomicLong[] sequences) {
+            long min = Long.MAX_VALUE;
+            for (AtomicLong sequence : sequences) {
+                min = Math.min(min, sequence.get());
+            }
+            return min;
+        }
+    }
+
     /**
      * Models the contents of the file.
      */
@@ -130,8 +1296,8 @@ public class Fifteen {
          * @param event A 'load' event.
          */
         private void onLoadEvent(Event event) {
-            // Assume the filepath is at index 0 of event's args and is a string.
-            String filepath = (String) event.getArgs().get(0);
+            // Assume the payload of the event is the filepath.
+            String filepath = (String) event.getPayload();
             try (Stream<String> lines = Files.lines(Paths.get(filepath))) {
                 // Normalize to lower case and convert all non-alphanumeric characters (except whitespace) to a space.
                 // Then join strings using the system's line separator in order to preserve line breaks in the single
@@ -146,15 +1312,17 @@ public class Fifteen {
 
         /**
          * Handler for 'start' events. In the context of this class, 'start' is interpreted as 'separate the file
-         * contents into individual words, and fire an event for each such word'.
+         * contents into individual words, and fire a word batch event for each {@link #BATCH_SIZE} words'.
          * @param event A start event.
          */
         private void onStartEvent(Event event) {
-            for (String word : mFileContents.split("\\s+")) {
-                mEventMgr.publish(new Event(EventType.WORD, word));
+            String[] words = mFileContents.split("\\s+");
+            for (int from = 0; from < words.length; from += BATCH_SIZE) {
+                mEventMgr.publish(EventType.WORD_BATCH,
+                        new WordBatch(words, from, Math.min(from + BATCH_SIZE, words.length)));
             }
             // Done processing file contents, so fire EOF event.
-            mEventMgr.publish(new Event(EventType.EOF));
+            mEventMgr.publish(EventType.EOF);
         }
     }
 
@@ -169,7 +1337,7 @@ public class Fifteen {
         private StopWordFilter(EventManager eventMgr) {
             mEventMgr = eventMgr;
             mEventMgr.subscribe(EventType.LOAD, this::onLoadEvent);
-            mEventMgr.subscribe(EventType.WORD, this::onWordEvent);
+            mEventMgr.subscribeBatch(EventType.WORD_BATCH, this::onWordBatch);
         }
 
         /**
@@ -198,16 +1366,25 @@ public class Fifteen {
         }
 
         /**
-         * Handler for 'word' events. In the context of this class, 'word' is interpreted as "inspect the word that is
-         * part of the event's arguments, checking if it is a stop word, and if it is not, fire a 'valid word' event".
-         * @param event A 'word' event.
+         * Handler for 'word batch' events. In the context of this class, 'word batch' is interpreted as "inspect each
+         * word of the batch, checking if it is a stop word, and fire a 'valid word batch' event with the words that are
+         * not".
+         * @param batch The words of a 'word batch' event.
          */
-        private void onWordEvent(Event event) {
-            // Assume that the word is the first argument of the event.
-            String word = (String) event.getArgs().get(0);
-            if (!mStopWords.contains(word)) {
-                // Not a stop word, so should be counted. Fire 'valid word' event in order to trigger word counter.
-                mEventMgr.publish(new Event(EventType.VALID_WORD, word));
+        private void onWordBatch(WordBatch batch) {
+            // A new array per batch as the batch may still be in use by asynchronous subscribers after this returns.
+            String[] validWords = new String[batch.size()];
+            int count = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                String word = batch.get(i);
+                if (!mStopWords.contains(word)) {
+                    // Not a stop word, so should be counted.
+                    validWords[count++] = word;
+                }
+            }
+            if (count > 0) {
+                // Fire 'valid word batch' event in order to trigger word counter.
+                mEventMgr.publish(EventType.VALID_WORD_BATCH, new WordBatch(validWords, 0, count));
             }
         }
     }
@@ -222,20 +1399,20 @@ public class Fifteen {
 
         private WordFrequencyCounter(EventManager eventMgr) {
             mEventMgr = eventMgr;
-            mEventMgr.subscribe(EventType.VALID_WORD, this::onValidWordEvent);
+            mEventMgr.subscribeBatch(EventType.VALID_WORD_BATCH, this::onValidWordBatch);
             mEventMgr.subscribe(EventType.PRINT, this::onPrintEvent);
         }
 
         /**
-         * Handler for 'valid word' events. In the context of this class, 'valid word' is interpreted as "increment the
-         * frequency for the word that is at the front of the event's arguments".
-         * @param event A 'valid word' event.
+         * Handler for 'valid word batch' events. In the context of this class, 'valid word batch' is interpreted as
+         * "increment the frequency for each word of the batch".
+         * @param batch The words of a 'valid word batch' event.
          */
-        private void onValidWordEvent(Event event) {
-            // Assume that the word is at index 0 of the event's arguments.
-            String validWord = (String) event.getArgs().get(0);
-            // Update count for word.
-            mWordFreqs.merge(validWord, 1, (currentVal, one) -> currentVal + one);
+        private void onValidWordBatch(WordBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                // Update count for word.
+                mWordFreqs.merge(batch.get(i), 1, (currentVal, one) -> currentVal + one);
+            }
         }
 
         /**
@@ -260,21 +1437,20 @@ public class Fifteen {
 
         private ZWordsTracker(EventManager eventMgr) {
             mEventMgr = eventMgr;
-            mEventMgr.subscribe(EventType.VALID_WORD, this::onValidWordEvent);
+            // Receives the words of 'valid word batch' events one at a time (see EventManager), but only those that
+            // contain the letter 'z' (see ContentRouter).
+            mEventMgr.subscribe(EventType.VALID_WORD, WordFilter.contains('z'), this::onValidWordEvent);
             mEventMgr.subscribe(EventType.PRINT, this::onPrintEvent);
         }
 
         /**
-         * Handler for 'valid word' events. In the context of this class, 'valid word' is interpreted as "if the word
-         * contains the letter 'z', make note of it".
+         * Handler for 'valid word' events. In the context of this class, 'valid word' is interpreted as "make note of
+         * the word", as the subscription only passes words that contain the letter 'z'.
          * @param event A 'valid word' event.
          */
         private void onValidWordEvent(Event event) {
-            // Assume that the word is at index 0 of the event's arguments.
-            String word = (String) event.getArgs().get(0);
-            if (word.contains("z")) {
-                mZWords.add(word);
-            }
+            // Assume that the word is the payload of the event.
+            mZWords.add((String) event.getPayload());
         }
 
 
@@ -293,6 +1469,199 @@ public class Fifteen {
 
     }
 
+    /**
+     * Computes a set of declared statistics of the valid words, such as the number of unique words that contain the
+     * letter 'z' (exercise 15.2, cf. {@link ZWordsTracker}), in a single pass. Rather than every statistic inspecting
+     * every word, the pass over the words only counts the occurrences of each unique word. The statistics are
+     * computed once all words have been counted, in one fused loop over the unique words: per unique word, its
+     * character classes (see {@link ContentRouter}) are computed once and each distinct {@link WordFilter} is tested
+     * once, no matter how many statistics share them. The cost of a statistic is thus proportional to the number of
+     * unique words rather than to the number of words. All statistics must be declared before events are published.
+     */
+    private static class StatisticsEngine {
+
+        private final Map<String, int[]> mWordFreqs = new HashMap<>();
+        private final List<Statistic> mStatistics = new ArrayList<>();
+        private boolean mComputed;
+
+        private StatisticsEngine(EventManager eventMgr) {
+            eventMgr.subscribeBatch(EventType.VALID_WORD_BATCH, this::onValidWordBatch);
+            eventMgr.subscribe(EventType.PRINT, this::onPrintEvent);
+        }
+
+        /**
+         * Declares a statistic that counts the words that pass a filter.
+         * @param name The name of the statistic.
+         * @param filter The filter; {@code null} to count all words.
+         * @param unique {@code true} to count unique words rather than occurrences.
+         * @return The statistic, computed once all words have been published.
+         */
+        private Statistic count(String name, WordFilter filter, boolean unique) {
+            return declare(new Statistic(name, Grouping.NONE, 0, filter, unique));
+        }
+
+        /**
+         * Declares a statistic that counts the words that pass a filter per letter they contain.
+         * @see #count(String, WordFilter, boolean)
+         */
+        private Statistic countByLetter(String name, WordFilter filter, boolean unique) {
+            return declare(new Statistic(name, Grouping.LETTER, 0, filter, unique));
+        }
+
+        /**
+         * Declares a statistic that counts the words that pass a filter per word length.
+         * @see #count(String, WordFilter, boolean)
+         */
+        private Statistic countByLength(String name, WordFilter filter, boolean unique) {
+            return declare(new Statistic(name, Grouping.LENGTH, 0, filter, unique));
+        }
+
+        /**
+         * Declares a statistic that counts the words that pass a filter per prefix. Words shorter than the prefix
+         * length are not counted.
+         * @param prefixLength The length of the prefixes.
+         * @see #count(String, WordFilter, boolean)
+         */
+        private Statistic countByPrefix(String name, int prefixLength, WordFilter filter, boolean unique) {
+            return declare(new Statistic(name, Grouping.PREFIX, prefixLength, filter, unique));
+        }
+
+        private Statistic declare(Statistic statistic) {
+            mStatistics.add(statistic);
+            return statistic;
+        }
+
+        /**
+         * Handler for 'valid word batch' events. In the context of this class, 'valid word batch' is interpreted as
+         * "count the occurrences of each word of the batch".
+         * @param batch The words of a 'valid word batch' event.
+         */
+        private void onValidWordBatch(WordBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                mWordFreqs.computeIfAbsent(batch.get(i), w -> new int[1])[0]++;
+            }
+        }
+
+        /**
+         * Handler for 'print' events. In the context of this class, 'print' is interpreted as "print the statistics
+         * to standard error".
+         * @param event A 'print' event.
+         */
+        private void onPrintEvent(Event event) {
+            compute();
+            mStatistics.forEach(System.err::println);
+        }
+
+        /**
+         * Computes all statistics in a single loop over the unique words.
+         */
+        private void compute() {
+            if (mComputed) {
+                return;
+            }
+            mComputed = true;
+            // Compile: each distinct filter is tested once per word, and each statistic refers to its filter's index.
+            List<WordFilter> filters = new ArrayList<>();
+            Map<String, Integer> filterIndices = new HashMap<>();
+            int[] filterOf = new int[mStatistics.size()];
+            for (int i = 0; i < filterOf.length; i++) {
+                WordFilter filter = mStatistics.get(i).mFilter;
+                filterOf[i] = filter == null ? -1 : filterIndices.computeIfAbsent(filter.toString(), f -> {
+                    filters.add(filter);
+                    return filters.size() - 1;
+                });
+            }
+            boolean[] passed = new boolean[filters.size()];
+            for (Map.Entry<String, int[]> e : mWordFreqs.entrySet()) {
+                String word = e.getKey();
+                long classes = ContentRouter.classesOf(word);
+                for (int f = 0; f < passed.length; f++) {
+                    passed[f] = filters.get(f).test(word, classes);
+                }
+                for (int i = 0; i < filterOf.length; i++) {
+                    if (filterOf[i] < 0 || passed[filterOf[i]]) {
+                        mStatistics.get(i).add(word, classes, e.getValue()[0]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * How a {@link Statistic} groups the words it counts.
+     */
+    private enum Grouping {
+        NONE, LETTER, LENGTH, PREFIX
+    }
+
+    /**
+     * A statistic declared with a {@link StatisticsEngine}: the number of (unique) words that pass a filter, possibly
+     * grouped.
+     */
+    private static class Statistic {
+
+        /**
+         * The character classes of the lower case letters (see {@link ContentRouter}).
+         */
+        private static final long LETTER_CLASSES = (1L << 26) - 1;
+
+        private final String mName;
+        private final Grouping mGrouping;
+        private final int mPrefixLength;
+        private final WordFilter mFilter;
+        private final boolean mUnique;
+        private long mTotal;
+
+        /**
+         * The counts per group; sorted by group.
+         */
+        private final Map<Object, Long> mGroups = new TreeMap<>();
+
+        private Statistic(String name, Grouping grouping, int prefixLength, WordFilter filter, boolean unique) {
+            mName = name;
+            mGrouping = grouping;
+            mPrefixLength = prefixLength;
+            mFilter = filter;
+            mUnique = unique;
+        }
+
+        /**
+         * Counts a unique word that passes the filter.
+         * @param word The word.
+         * @param classes The character classes of the word.
+         * @param freq The number of occurrences of the word.
+         */
+        private void add(String word, long classes, int freq) {
+            long count = mUnique ? 1 : freq;
+            mTotal += count;
+            switch (mGrouping) {
+                case LETTER:
+                    for (long letters = classes & LETTER_CLASSES; letters != 0; letters &= letters - 1) {
+                        mGroups.merge((char) ('a' + Long.numberOfTrailingZeros(letters)), count, Long::sum);
+                    }
+                    break;
+                case LENGTH:
+                    mGroups.merge(word.length(), count, Long::sum);
+                    break;
+                case PREFIX:
+                    if (word.length() >= mPrefixLength) {
+                        mGroups.merge(word.substring(0, mPrefixLength), count, Long::sum);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(mName).append(": ").append(mTotal);
+            mGroups.forEach((group, count) -> sb.append(System.lineSeparator()).append("  ").append(group).
+                    append("  -  ").append(count));
+            return sb.toString();
+        }
+    }
+
     private static class WordFrequencyApp {
 
         private final EventManager mEventMgr;
@@ -309,9 +1678,9 @@ public class Fifteen {
          * @param event A 'run' event.
          */
         private void onRunEvent(Event event) {
-            String filepath = (String) event.getArgs().get(0);
-            mEventMgr.publish(new Event(EventType.LOAD, filepath));
-            mEventMgr.publish(new Event(EventType.START));
+            String filepath = (String) event.getPayload();
+            mEventMgr.publish(EventType.LOAD, filepath);
+            mEventMgr.publish(EventType.START);
         }
 
         /**
@@ -320,7 +1689,7 @@ public class Fifteen {
          * @param event An 'EOF' event.
          */
         private void onEofEvent(Event event) {
-            mEventMgr.publish(new Event(EventType.PRINT));
+            mEventMgr.publish(EventType.PRINT);
         }
     }
 
@@ -2,7 +2,15 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BinaryOperator;
 import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -13,10 +21,26 @@ import java.util.stream.Stream;
  * {@link WordFrequencyFramework}, {@link DataStorage}, {@link StopWordFilter}, and {@link WordFrequencyCounter} are
  * direct Java translations of the book's Python code.
  *
+ * <p>
+ *     The do-work phase runs on a pool of worker threads (see {@link WordFrequencyFramework}); set the system property
+ *     {@code fourteen.workers} to change the number of workers (defaults to the number of cores).
+ * </p>
+ *
  * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
  */
 public class Fourteen {
 
+    /**
+     * Name of the system property that specifies the number of worker threads of the do-work phase.
+     */
+    public static final String WORKER_COUNT_PROPERTY = "fourteen.workers";
+
+    /**
+     * The number of partitions per worker that partitioned do-work handlers are asked for, such that workers that are
+     * done early can pick up more work.
+     */
+    private static final int PARTITIONS_PER_WORKER = 4;
+
     public static void main(String[] args) {
         WordFrequencyFramework wordFreqFramework = new WordFrequencyFramework();
         StopWordFilter stopWordFilter = new StopWordFilter(wordFreqFramework);
@@ -26,7 +50,7 @@ public class Fourteen {
         // WordFrequencyCounter object.
         new WordFrequencyCounter(wordFreqFramework, dataStorage);
         // Exercise 14.2: instantiate the additional observer.
-        ZWordsCounter zWordsCounter = new ZWordsCounter(stopWordFilter);
+        ZWordsCounter zWordsCounter = new ZWordsCounter(wordFreqFramework, stopWordFilter);
         // Exercise 14.2: register the additional observer as observer of word events.
         dataStorage.registerWordEventHandler(zWordsCounter::onWordEncountered);
         // Exercise 14.2: register the additional observer as observer of termination events.
@@ -36,17 +60,47 @@ public class Fourteen {
     }
 
 
+    /**
+     * Runs the load, do-work, and end phases. The do-work phase runs on a pool of worker threads: a partitioned do-work
+     * handler splits its work into tasks that run in parallel, and a plain do-work handler is a single task. The
+     * do-work handlers run one after the other, in the order they were registered. As tasks run concurrently, the state
+     * they update must be held in {@link WorkerState} slots, which are merged before the end phase.
+     */
     public static class WordFrequencyFramework {
 
         private final List<Consumer<String>> mLoadEventHandlers = new ArrayList<>();
-        private final List<Runnable> mDoWorkEventHandlers = new ArrayList<>();
+        private final List<IntFunction<List<Runnable>>> mDoWorkEventHandlers = new ArrayList<>();
         private final List<Runnable> mEndEventHandlers = new ArrayList<>();
+        private final List<WorkerState<?>> mWorkerStates = new ArrayList<>();
+        private final int mWorkerCount;
+
+        public WordFrequencyFramework() {
+            this(Integer.getInteger(WORKER_COUNT_PROPERTY, Runtime.getRuntime().availableProcessors()));
+        }
+
+        /**
+         * @param workerCount The number of worker threads of the do-work phase.
+         */
+        public WordFrequencyFramework(int workerCount) {
+            if (workerCount < 1) {
+                throw new IllegalArgumentException("Need at least one worker, was " + workerCount);
+            }
+            mWorkerCount = workerCount;
+        }
 
         public void registerLoadEventHandler(Consumer<String> handler) {
             mLoadEventHandlers.add(handler);
         }
 
         public void registerDoWorkEventHandler(Runnable handler) {
+            mDoWorkEventHandlers.add(partitions -> Collections.singletonList(handler));
+        }
+
+        /**
+         * Registers a do-work handler whose work can be split into tasks that run in parallel.
+         * @param handler Given the number of partitions the framework would like, returns the tasks (any number).
+         */
+        public void registerPartitionedDoWorkEventHandler(IntFunction<List<Runnable>> handler) {
             mDoWorkEventHandlers.add(handler);
         }
 
@@ -54,15 +108,97 @@ public class Fourteen {
             mEndEventHandlers.add(handler);
         }
 
+        /**
+         * Registers a state slot for do-work tasks: each worker thread updates its own instance of the state, and the
+         * instances are merged at the end of the do-work phase.
+         * @param initial Creates an empty instance of the state.
+         * @param merge Merges two instances of the state. May return (a modified) one of them.
+         * @param <S> The type of the state.
+         * @return The state slot.
+         */
+        public <S> WorkerState<S> registerWorkerState(Supplier<S> initial, BinaryOperator<S> merge) {
+            WorkerState<S> state = new WorkerState<>(initial, merge);
+            mWorkerStates.add(state);
+            return state;
+        }
+
         // Alternatively, one could make this class implement Consumer<String> for this purpose.
         public void run(String filepath) {
             mLoadEventHandlers.forEach(h -> h.accept(filepath));
-            mDoWorkEventHandlers.forEach(r -> r.run());
+            ExecutorService workers = Executors.newFixedThreadPool(mWorkerCount);
+            try {
+                for (IntFunction<List<Runnable>> handler : mDoWorkEventHandlers) {
+                    List<Future<?>> tasks = new ArrayList<>();
+                    for (Runnable task : handler.apply(mWorkerCount * PARTITIONS_PER_WORKER)) {
+                        tasks.add(workers.submit(task));
+                    }
+                    for (Future<?> task : tasks) {
+                        task.get();
+                    }
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                // Rethrow wrapped in unchecked exception.
+                throw new RuntimeException(e instanceof ExecutionException ? e.getCause() : e);
+            } finally {
+                workers.shutdownNow();
+            }
+            mWorkerStates.forEach(WorkerState::merge);
             mEndEventHandlers.forEach(r -> r.run());
         }
 
     }
 
+    /**
+     * A state slot of do-work tasks (see {@link WordFrequencyFramework#registerWorkerState(Supplier, BinaryOperator)}).
+     * During the do-work phase, {@link #get()} returns the calling worker's own instance of the state; during the end
+     * phase, {@link #merged()} returns the merged state.
+     *
+     * @param <S> The type of the state.
+     */
+    public static class WorkerState<S> {
+
+        private final Supplier<S> mInitial;
+        private final BinaryOperator<S> mMerge;
+        private final Queue<S> mInstances = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<S> mInstance;
+        private S mMerged;
+
+        private WorkerState(Supplier<S> initial, BinaryOperator<S> merge) {
+            mInitial = initial;
+            mMerge = merge;
+            mInstance = ThreadLocal.withInitial(() -> {
+                S instance = initial.get();
+                mInstances.add(instance);
+                return instance;
+            });
+        }
+
+        /**
+         * @return The calling worker thread's instance of the state.
+         */
+        public S get() {
+            if (mMerged != null) {
+                throw new IllegalStateException("already merged; use merged() in the end phase");
+            }
+            return mInstance.get();
+        }
+
+        /**
+         * @return The merged state.
+         */
+        public S merged() {
+            if (mMerged == null) {
+                throw new IllegalStateException("not yet merged; the state is merged at the end of the do-work phase");
+            }
+            return mMerged;
+        }
+
+        private void merge() {
+            mMerged = mInstances.stream().reduce(mMerge).orElseGet(mInitial);
+            mInstances.clear();
+        }
+    }
+
     /**
      * Models the contents of the file.
      */
@@ -74,7 +210,7 @@ public class Fourteen {
 
         private DataStorage(WordFrequencyFramework wff, StopWordFilter stopWordFilter) {
             wff.registerLoadEventHandler(this::load);
-            wff.registerDoWorkEventHandler(this::produceWords);
+            wff.registerPartitionedDoWorkEventHandler(this::produceWords);
             mStopWordFilter = stopWordFilter;
         }
 
@@ -91,17 +227,60 @@ public class Fourteen {
             }
         }
 
-        private void produceWords() {
+        /**
+         * Splits the file contents into (roughly) equally sized partitions at whitespace, and returns a task per
+         * partition that produces the words of the partition.
+         * @param partitionCount The number of partitions.
+         * @return The tasks.
+         */
+        private List<Runnable> produceWords(int partitionCount) {
             if (mFileContents == null) {
                 throw new IllegalStateException("not yet initialized; must load file contents via load(String) first");
             }
-            for (String word : mFileContents.split("\\s+")) {
+            List<Runnable> tasks = new ArrayList<>();
+            int start = 0;
+            for (int i = 1; i <= partitionCount; i++) {
+                int end = (int) ((long) mFileContents.length() * i / partitionCount);
+                // Move the end to the start of the next run of whitespace such that no word is cut in two.
+                while (end < mFileContents.length() && !Character.isWhitespace(mFileContents.charAt(end))) {
+                    end++;
+                }
+                if (end > start) {
+                    // Only the first partition can produce an empty first word, in which case the file starts with
+                    // whitespace, just like when splitting the entire file contents.
+                    boolean first = start == 0;
+                    String partition = mFileContents.substring(start, end);
+                    tasks.add(() -> produceWords(partition, first));
+                }
+                start = end;
+            }
+            return tasks;
+        }
+
+        /**
+         * Invokes the word event handlers for each non stop word of a partition of the file contents. Runs on a worker
+         * thread, concurrently with other partitions.
+         * @param partition The partition.
+         * @param first {@code true} if this is the first partition.
+         */
+        private void produceWords(String partition, boolean first) {
+            for (String word : partition.split("\\s+")) {
+                if (word.isEmpty() && !first) {
+                    // The whitespace at the start of the partition.
+                    continue;
+                }
+                first = false;
                 if (!mStopWordFilter.isStopWord(word)) {
                     mWordEventHandlers.forEach(h -> h.accept(word));
                 }
             }
         }
 
+        /**
+         * Registers a handler of the words of the file. Note that handlers are invoked concurrently by multiple worker
+         * threads, so must keep their state in a {@link WorkerState}.
+         * @param handler The handler.
+         */
         private void registerWordEventHandler(Consumer<String> handler) {
             mWordEventHandlers.add(handler);
         }
@@ -152,19 +331,26 @@ public class Fourteen {
      */
     private static class WordFrequencyCounter {
 
-        private final Map<String, Integer> mWordFreqs = new HashMap<>();
+        /**
+         * The word frequencies counted by each worker, merged at the end of the do-work phase.
+         */
+        private final WorkerState<Map<String, Integer>> mWordFreqs;
 
         private WordFrequencyCounter(WordFrequencyFramework wff, DataStorage dataStorage) {
+            mWordFreqs = wff.registerWorkerState(HashMap::new, (freqs1, freqs2) -> {
+                freqs2.forEach((word, freq) -> freqs1.merge(word, freq, Integer::sum));
+                return freqs1;
+            });
             dataStorage.registerWordEventHandler(this::incrementWordCount);
             wff.registerEndEventHandler(this::printFrequencies);
         }
 
         private void incrementWordCount(String word) {
-            mWordFreqs.merge(word, 1, (currentVal, one) -> currentVal + one);
+            mWordFreqs.get().merge(word, 1, (currentVal, one) -> currentVal + one);
         }
 
         private void printFrequencies() {
-            mWordFreqs.entrySet().stream().map(e -> new Pair<>(e.getKey(), e.getValue())).
+            mWordFreqs.merged().entrySet().stream().map(e -> new Pair<>(e.getKey(), e.getValue())).
                     sorted((p1, p2) -> -p1.second().compareTo(p2.second())).limit(25).collect(Collectors.toList()).
                     forEach(p -> System.out.println(String.format("%s  -  %d", p.first(), p.second())));
         }
@@ -175,23 +361,27 @@ public class Fourteen {
      * Provides the functionality required for exercise 14.2.
      */
     private static class ZWordsCounter {
-        private final Set<String> mZWords = new HashSet<>();
+        private final WorkerState<Set<String>> mZWords;
         private final StopWordFilter mStopWordFilter;
 
-        private ZWordsCounter(StopWordFilter stopWordFilter) {
+        private ZWordsCounter(WordFrequencyFramework wff, StopWordFilter stopWordFilter) {
+            mZWords = wff.registerWorkerState(HashSet::new, (zWords1, zWords2) -> {
+                zWords1.addAll(zWords2);
+                return zWords1;
+            });
             mStopWordFilter = stopWordFilter;
         }
 
         /**
-         * Adds the given {@code word} to {@link #mZWords} <em>iff</em> {@code word} is not a stop word and {@code word}
-         * contains the letter 'z'.
+         * Adds the given {@code word} to the worker's {@link #mZWords} <em>iff</em> {@code word} is not a stop word and
+         * {@code word} contains the letter 'z'.
          *
          * @param word A word (from the input file).
          */
         private void onWordEncountered(String word) {
             if (!mStopWordFilter.isStopWord(word) && word.contains("z")) {
                 // Only add word if it is not a stop word and it contains the letter 'z'.
-                mZWords.add(word);
+                mZWords.get().add(word);
             }
         }
 
@@ -203,7 +393,7 @@ public class Fourteen {
             // Note: Prof. Lopes said on canvas that it was up to me if I print the number of unique words containing
             // the letter 'z', or the total number of words containing the letter 'z' (counting duplicates). I opted for
             // the former.
-            System.out.println(mZWords.size());
+            System.out.println(mZWords.merged().size());
         }
     }
 
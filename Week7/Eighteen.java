@@ -1,8 +1,18 @@
 import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.Method;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -55,16 +65,17 @@ public class Eighteen {
     }
 
     private static BiFunction<Object, Object[], Object> profile(final Method m) {
+        // Look up the method's profile once per aspect rather than once per call.
+        final MethodProfile profile = Profiler.methodProfile(m);
         return (instance, args) -> {
             try {
+                long startAllocated = Profiler.allocatedBytes();
+                long startCpuTime = Profiler.cpuTime();
                 long startTime = System.nanoTime();
                 // Invoke method provided as argument.
                 Object methodReturnValue = m.invoke(instance, args);
                 long elapsed = System.nanoTime() - startTime;
-                System.out.println(
-                        String.format("%s.%s(...) took %d nanoseconds",
-                                m.getDeclaringClass().getSimpleName(), m.getName(), elapsed)
-                );
+                profile.record(elapsed, Profiler.cpuTime() - startCpuTime, Profiler.allocatedBytes() - startAllocated);
                 return methodReturnValue;
             } catch (ReflectiveOperationException roe) {
                 roe.printStackTrace();
@@ -74,12 +85,275 @@ public class Eighteen {
         };
     }
 
+    /**
+     * Lock-free histogram in the style of HdrHistogram: values are bucketed by their power of two, and each
+     * power of two is split into linear sub-buckets so that every recorded value is kept with a bounded relative
+     * error. Recording is a handful of atomic updates and never allocates.
+     */
+    public static class Histogram {
+
+        private final int mSubBucketBits;
+        private final int mSubBucketCount;
+        private final AtomicLongArray mCounts;
+        private final LongAdder mTotalCount = new LongAdder();
+        private final LongAdder mTotal = new LongAdder();
+        private final AtomicLong mMax = new AtomicLong();
+
+        /**
+         * @param significantDigits Number of significant decimal digits to keep for each recorded value (1 to 3).
+         */
+        public Histogram(int significantDigits) {
+            if (significantDigits < 1 || significantDigits > 3) {
+                throw new IllegalArgumentException("significantDigits must be between 1 and 3");
+            }
+            long subBuckets = 1;
+            for (int i = 0; i < significantDigits; i++) {
+                subBuckets *= 10;
+            }
+            // Smallest power of two that gives at least the requested resolution within each power of two.
+            mSubBucketBits = 64 - Long.numberOfLeadingZeros(subBuckets - 1);
+            mSubBucketCount = 1 << mSubBucketBits;
+            mCounts = new AtomicLongArray((65 - mSubBucketBits) * mSubBucketCount);
+        }
+
+        /**
+         * Record a single value.
+         * @param value The value to record, e.g. a duration in nanoseconds. Negative values are recorded as zero.
+         */
+        public void record(long value) {
+            value = Math.max(value, 0);
+            mCounts.incrementAndGet(indexOf(value));
+            mTotalCount.increment();
+            mTotal.add(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        /**
+         * @return The number of recorded values.
+         */
+        public long count() {
+            return mTotalCount.sum();
+        }
+
+        /**
+         * @return The mean of the recorded values, or 0 if no values have been recorded.
+         */
+        public double mean() {
+            long count = count();
+            return count == 0 ? 0 : (double) mTotal.sum() / count;
+        }
+
+        /**
+         * @return The sum of the recorded values.
+         */
+        public long total() {
+            return mTotal.sum();
+        }
+
+        /**
+         * @return The largest recorded value.
+         */
+        public long max() {
+            return mMax.get();
+        }
+
+        /**
+         * @param percentile The percentile to compute, in the range [0, 100].
+         * @return The recorded value at the given percentile, accurate to the histogram's precision.
+         */
+        public long percentile(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length(); i++) {
+                seen += mCounts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestValueAt(i), max());
+                }
+            }
+            return max();
+        }
+
+        private int indexOf(long value) {
+            if (value < mSubBucketCount) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - mSubBucketBits;
+            long subBucket = (value >>> shift) - mSubBucketCount;
+            return (shift + 1) * mSubBucketCount + (int) subBucket;
+        }
+
+        private long highestValueAt(int index) {
+            if (index < mSubBucketCount) {
+                return index;
+            }
+            int shift = index / mSubBucketCount - 1;
+            long subBucket = mSubBucketCount + index % mSubBucketCount;
+            return ((subBucket + 1) << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.0f p50=%d p99=%d max=%d",
+                    count(), mean(), percentile(50), percentile(99), max());
+        }
+    }
+
+    /**
+     * What the profiling aspect has recorded for one tracked method: a histogram each of the wall-clock time, the
+     * thread CPU time (both in nanoseconds) and the bytes allocated by the calling thread, per invocation.
+     */
+    public static class MethodProfile {
+
+        private final Histogram mWallTime;
+        private final Histogram mCpuTime;
+        private final Histogram mAllocatedBytes;
+
+        private MethodProfile(int precision) {
+            mWallTime = new Histogram(precision);
+            mCpuTime = new Histogram(precision);
+            mAllocatedBytes = new Histogram(precision);
+        }
+
+        private void record(long wallTime, long cpuTime, long allocatedBytes) {
+            mWallTime.record(wallTime);
+            if (Profiler.CPU_TIME) {
+                mCpuTime.record(cpuTime);
+            }
+            if (Profiler.ALLOCATION) {
+                mAllocatedBytes.record(allocatedBytes);
+            }
+        }
+
+        /**
+         * @return Wall-clock time per invocation, in nanoseconds.
+         */
+        public Histogram wallTime() {
+            return mWallTime;
+        }
+
+        /**
+         * @return CPU time of the calling thread per invocation, in nanoseconds. Empty if the JVM does not support
+         *         measuring thread CPU time, or if resource accounting is not enabled.
+         */
+        public Histogram cpuTime() {
+            return mCpuTime;
+        }
+
+        /**
+         * @return Bytes allocated by the calling thread per invocation. Empty if the JVM does not support measuring
+         *         thread allocation, or if resource accounting is not enabled.
+         */
+        public Histogram allocatedBytes() {
+            return mAllocatedBytes;
+        }
+    }
+
+    /**
+     * Registry of the profiles recorded by the profiling aspect, one per tracked method.
+     * The profiles are reported to stderr when the JVM exits, and additionally every
+     * {@code eighteen.reportInterval} seconds if that property is set.
+     * The precision of the histograms is set with {@code eighteen.precision} (significant decimal digits, default 2).
+     * CPU time and allocation accounting is turned on with {@code -Deighteen.resources=true}. It is off by default as
+     * reading the thread's CPU time and allocated bytes costs several hundred nanoseconds per tracked call.
+     */
+    public static class Profiler {
+
+        private static final int PRECISION = Integer.getInteger("eighteen.precision", 2);
+        private static final Map<Method, MethodProfile> PROFILES = new ConcurrentHashMap<>();
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+        private static final boolean RESOURCES = Boolean.getBoolean("eighteen.resources");
+        private static final boolean CPU_TIME = RESOURCES && THREADS.isCurrentThreadCpuTimeSupported();
+        private static final boolean ALLOCATION = RESOURCES &&
+                THREADS instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+
+        static {
+            if (CPU_TIME && !THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            if (ALLOCATION && !((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled()) {
+                ((com.sun.management.ThreadMXBean) THREADS).setThreadAllocatedMemoryEnabled(true);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> report(System.err)));
+            long interval = Long.getLong("eighteen.reportInterval", 0);
+            if (interval > 0) {
+                ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "eighteen-profiler");
+                    t.setDaemon(true);
+                    return t;
+                });
+                reporter.scheduleAtFixedRate(() -> report(System.err), interval, interval, TimeUnit.SECONDS);
+            }
+        }
+
+        /**
+         * @return CPU time consumed by the current thread so far in nanoseconds, or 0 if not measured.
+         */
+        private static long cpuTime() {
+            return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+        }
+
+        /**
+         * @return Bytes allocated by the current thread so far, or 0 if not measured.
+         */
+        private static long allocatedBytes() {
+            return ALLOCATION ?
+                    ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId())
+                    : 0;
+        }
+
+        /**
+         * @param m A profiled method.
+         * @return The profile recorded for {@code m}, created on first use.
+         */
+        public static MethodProfile methodProfile(Method m) {
+            return PROFILES.computeIfAbsent(m, k -> new MethodProfile(PRECISION));
+        }
+
+        /**
+         * @return A snapshot of the methods profiled so far along with their profiles.
+         */
+        public static Map<Method, MethodProfile> methodProfiles() {
+            return Collections.unmodifiableMap(new HashMap<>(PROFILES));
+        }
+
+        /**
+         * Print the profile summary of every profiled method.
+         * @param out Where to print the report.
+         */
+        public static void report(PrintStream out) {
+            PROFILES.forEach((m, p) -> {
+                String method = String.format("%s.%s(...)", m.getDeclaringClass().getSimpleName(), m.getName());
+                out.println(String.format("%s wall nanoseconds: %s", method, p.wallTime()));
+                if (CPU_TIME) {
+                    out.println(String.format("%s cpu nanoseconds: %s", method, p.cpuTime()));
+                }
+                if (ALLOCATION) {
+                    out.println(String.format("%s allocated bytes: %s total=%d",
+                            method, p.allocatedBytes(), p.allocatedBytes().total()));
+                }
+            });
+        }
+    }
+
     /**
      * Since Java does not allow for runtime modifications to the symbol table, we must resort to a proxy design pattern
      * in order to achieve the goals of the exercise.
      */
     public static class EighteenProxy extends Eighteen {
 
+        /**
+         * Invocation targets resolved per set of tracked methods. Shared by all proxies tracking the same methods.
+         */
+        private static final Map<Set<Method>, InvocationTargets> TARGETS = new ConcurrentHashMap<>();
+
         /**
          * Factory for creating {@code Eighteen} proxies.
          * Clients wishing to profile {@code Eighteen} code should instantiate proxies using this factory.
@@ -90,70 +364,67 @@ public class Eighteen {
          * @return A proxy that forwards all calls to a new {@code Eighteen} instance.
          */
         public static Eighteen newEighteenProxy(Method[] trackedMethods) {
-            trackedMethods = trackedMethods == null ? new Method[0] : trackedMethods;
-            return new EighteenProxy(new Eighteen(), trackedMethods);
+            Set<Method> tracked = trackedMethods == null ?
+                    Collections.emptySet() : new HashSet<>(Arrays.asList(trackedMethods));
+            return new EighteenProxy(new Eighteen(), TARGETS.computeIfAbsent(tracked, InvocationTargets::new));
         }
 
         private final Eighteen mProxied;
-        private final Method[] mTrackedMethods;
+        private final InvocationTargets mTargets;
 
-        private EighteenProxy(Eighteen proxied, Method[] trackedMethods) {
+        private EighteenProxy(Eighteen proxied, InvocationTargets targets) {
             mProxied = proxied;
-            mTrackedMethods = trackedMethods;
-        }
-
-        /**
-         * Locate the computation that is to be executed. If there is a tracked version of the invoked method present,
-         * then that version will be returned as the invocation target. If not, the returned invocation target will
-         * simply be the standard version of the method as defined in {@code Eighteen}.
-         * @param methodOfCurrentClass The method that is being invoked on the proxy instance.
-         * @return The computation that is determined to be the one to execute.
-         */
-        private BiFunction<Object, Object[], Object> findInvocationTarget(Method methodOfCurrentClass) {
-            Optional<Method> trackedCounterpart = getTrackedCounterpart(methodOfCurrentClass);
-            if (trackedCounterpart.isPresent()) {
-                return Eighteen.profile(trackedCounterpart.get());
-            } else {
-                return (instance, args) -> {
-                    try {
-                        Method eighteenMethod = Eighteen.class.getDeclaredMethod(methodOfCurrentClass.getName(),
-                                methodOfCurrentClass.getParameterTypes());
-                        return eighteenMethod.invoke(instance, args);
-                    } catch (ReflectiveOperationException roe) {
-                        // rethrow as unchecked.
-                        throw new RuntimeException(roe);
-                    }
-                };
+            mTargets = targets;
+        }
+
+        /**
+         * The computation to execute for each method of {@code Eighteen}, located once when a set of tracked methods
+         * is first seen. A tracked method maps to its profiled version. An untracked method maps to {@code null}, in
+         * which case the proxy simply calls the method on the proxied instance.
+         */
+        private static class InvocationTargets {
+
+            private final BiFunction<Object, Object[], Object> mExtractWords;
+            private final BiFunction<Object, Object[], Object> mFrequencies;
+            private final BiFunction<Object, Object[], Object> mSort;
+
+            private InvocationTargets(Set<Method> trackedMethods) {
+                mExtractWords = find(trackedMethods, "extractWords", String.class);
+                mFrequencies = find(trackedMethods, "frequencies", List.class);
+                mSort = find(trackedMethods, "sort", Map.class);
+            }
+
+            private static BiFunction<Object, Object[], Object> find(Set<Method> trackedMethods, String name,
+                                                                     Class<?>... parameterTypes) {
+                try {
+                    Method eighteenMethod = Eighteen.class.getDeclaredMethod(name, parameterTypes);
+                    return trackedMethods.contains(eighteenMethod) ? Eighteen.profile(eighteenMethod) : null;
+                } catch (NoSuchMethodException nsme) {
+                    // rethrow as unchecked.
+                    throw new RuntimeException(nsme);
+                }
             }
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         protected List<String> extractWords(String filepath) {
-            // Hack to get enclosing method courtesy of https://stackoverflow.com/a/5891326/1214974
-            Method thisMethod = new Object(){}.getClass().getEnclosingMethod();
-            return (List<String>) findInvocationTarget(thisMethod).apply(mProxied, new Object[] { filepath });
+            return mTargets.mExtractWords == null ? mProxied.extractWords(filepath) :
+                    (List<String>) mTargets.mExtractWords.apply(mProxied, new Object[] { filepath });
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         protected Map<String, Integer> frequencies(List<String> words) {
-            // Hack to get enclosing method courtesy of https://stackoverflow.com/a/5891326/1214974
-            Method thisMethod = new Object(){}.getClass().getEnclosingMethod();
-            return (Map<String, Integer>) findInvocationTarget(thisMethod).apply(mProxied, new Object[] { words });
+            return mTargets.mFrequencies == null ? mProxied.frequencies(words) :
+                    (Map<String, Integer>) mTargets.mFrequencies.apply(mProxied, new Object[] { words });
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         protected List<Map.Entry<String, Integer>> sort(Map<String, Integer> wordFreqs) {
-            // Hack to get enclosing method courtesy of https://stackoverflow.com/a/5891326/1214974
-            Method thisMethod = new Object(){}.getClass().getEnclosingMethod();
-            return (List<Map.Entry<String, Integer>>)
-                    findInvocationTarget(thisMethod).apply(mProxied, new Object[] { wordFreqs });
-        }
-
-        private Optional<Method> getTrackedCounterpart(Method method) {
-            return Arrays.stream(mTrackedMethods).
-                    filter(m -> m.getName().equals(method.getName()) &&
-                            Arrays.equals(m.getParameterTypes(), method.getParameterTypes()))
-                    .findFirst();
+            return mTargets.mSort == null ? mProxied.sort(wordFreqs) :
+                    (List<Map.Entry<String, Integer>>) mTargets.mSort.apply(mProxied, new Object[] { wordFreqs });
         }
 
     }
@@ -1,12 +1,24 @@
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -20,28 +32,164 @@ import java.util.function.Function;
 public class Nineteen {
 
     /**
-     * The function that extracts words. To be loaded dynamically.
+     * Path to the configuration file that names the plugins.
      */
-    private static Function<String, List<String>> EXTRACT_WORDS_FUNC;
+    private static final Path CONFIG = Paths.get("./config.properties");
 
     /**
-     * The function that counts the top 25 word frequencies. To be loaded dynamically.
+     * How long the plugins directory must be quiet before the plugins are reloaded.
      */
-    private static Function<List<String>, List<Map.Entry<String, Integer>>> FREQUENCIES_FUNC;
+    private static final long PLUGINS_RELOAD_DELAY_MS = 200;
 
     /**
-     * For exercise 19.4: Dynamically loaded print function.
+     * The currently loaded plugins. Replaced as a whole whenever the plugins are reloaded.
      */
-    private static Consumer<List<Map.Entry<String, Integer>>> PRINT_FUNC;
+    private static final AtomicReference<Plugins> PLUGINS = new AtomicReference<>();
 
+    /**
+     * The dynamically loaded functions along with the class loader that loaded them. A run of the program acquires
+     * one {@code Plugins} instance and uses it throughout, so it never mixes plugins from different versions. Once a
+     * newer version has been loaded and the last run using the old version has finished, the old class loader is
+     * closed and dropped so that it (and the classes it loaded) can be unloaded.
+     */
+    private static class Plugins {
+
+        /**
+         * The function that extracts words.
+         */
+        private final Function<String, List<String>> mExtractWordsFunc;
+
+        /**
+         * The function that counts the top 25 word frequencies.
+         */
+        private final Function<List<String>, List<Map.Entry<String, Integer>>> mFrequenciesFunc;
+
+        /**
+         * For exercise 19.4: Dynamically loaded print function.
+         */
+        private final Consumer<List<Map.Entry<String, Integer>>> mPrintFunc;
+
+        private final URLClassLoader mClassLoader;
+
+        /**
+         * Number of runs using these plugins, plus one while these are the current plugins.
+         */
+        private final AtomicInteger mReferences = new AtomicInteger(1);
+
+        private Plugins(Function<String, List<String>> extractWordsFunc,
+                        Function<List<String>, List<Map.Entry<String, Integer>>> frequenciesFunc,
+                        Consumer<List<Map.Entry<String, Integer>>> printFunc,
+                        URLClassLoader classLoader) {
+            mExtractWordsFunc = extractWordsFunc;
+            mFrequenciesFunc = frequenciesFunc;
+            mPrintFunc = printFunc;
+            mClassLoader = classLoader;
+        }
+
+        /**
+         * @return {@code true} if the plugins were acquired, {@code false} if they have already been released.
+         */
+        private boolean acquire() {
+            int references;
+            do {
+                references = mReferences.get();
+                if (references == 0) {
+                    return false;
+                }
+            } while (!mReferences.compareAndSet(references, references + 1));
+            return true;
+        }
+
+        private void release() {
+            if (mReferences.decrementAndGet() == 0) {
+                try {
+                    mClassLoader.close();
+                } catch (IOException ioe) {
+                    // Nothing left to do with the old loader; the garbage collector reclaims it regardless.
+                    System.err.println("Failed to close plugin class loader: " + ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads plugin classes from the plugins directory before asking the parent class loader. Without this, plugin
+     * classes that also happen to be on the application class path (e.g. when the plugins directory is the working
+     * directory) would always resolve to the version loaded at startup, and reloading would have no effect.
+     */
+    private static class PluginClassLoader extends URLClassLoader {
+
+        static {
+            ClassLoader.registerAsParallelCapable();
+        }
+
+        private PluginClassLoader(URL pluginsDirUrl, ClassLoader parent) {
+            super(new URL[] { pluginsDirUrl }, parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("java.") || name.equals(Nineteen.class.getName()) ||
+                    name.startsWith(Nineteen.class.getName() + "$")) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    try {
+                        c = findClass(name);
+                    } catch (ClassNotFoundException cnfe) {
+                        return super.loadClass(name, resolve);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Runs the program on the file given as argument. If the system property {@code nineteen.watch} is set, the
+     * program keeps running after that: it reloads the plugins whenever the configuration file or the plugins
+     * directory changes, and runs again on every file path subsequently read from standard input.
+     */
     public static void main(String[] args)
             throws IOException, ClassNotFoundException, InstantiationException, IllegalAccessException {
         loadPlugins();
-        PRINT_FUNC.accept(FREQUENCIES_FUNC.apply(EXTRACT_WORDS_FUNC.apply(args[0])));
+        run(args[0]);
+        if (Boolean.getBoolean("nineteen.watch")) {
+            watchPlugins();
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            String filepath;
+            while ((filepath = in.readLine()) != null) {
+                if (!filepath.trim().isEmpty()) {
+                    run(filepath.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the word frequency program on a file with the currently loaded plugins.
+     * @param filepath Path to the file whose words are to be counted.
+     */
+    public static void run(String filepath) {
+        Plugins plugins;
+        do {
+            plugins = PLUGINS.get();
+        } while (!plugins.acquire());
+        try {
+            plugins.mPrintFunc.accept(plugins.mFrequenciesFunc.apply(plugins.mExtractWordsFunc.apply(filepath)));
+        } finally {
+            plugins.release();
+        }
     }
 
     /**
-     * Dynamically loads the "plugins".
+     * Dynamically loads the "plugins" into a fresh class loader and makes them the current plugins. Runs in progress
+     * finish with the plugins they started with.
      * @throws ClassNotFoundException
      * @throws IOException
      * @throws IllegalAccessException
@@ -49,37 +197,108 @@ public class Nineteen {
      */
     public static void loadPlugins() throws ClassNotFoundException, IOException, IllegalAccessException, InstantiationException {
         // Load the configuration file
-        Properties config = new Properties();
-        config.load(new BufferedReader(new FileReader("./config.properties")));
+        Properties config = readConfig();
         // Read the directory from which to read code dynamically (plugins) and convert it to a URL
         URL pluginsDirUrl = Paths.get(config.getProperty("pluginsDir")).toUri().toURL();
-        ClassLoader classLoader = new URLClassLoader(new URL[] { pluginsDirUrl }, Nineteen.class.getClassLoader());
-        // Read the names of classes to be dynamically loaded.
-        String wordsProviderClassName = config.getProperty("words_provider");
-        String frequenciesProviderClassName = config.getProperty("frequencies_provider");
-        // Drop ".class" from class names if present.
-        wordsProviderClassName = removeDotClass(wordsProviderClassName);
-        frequenciesProviderClassName = removeDotClass(frequenciesProviderClassName);
-        // Load the classes dynamically.
-        Class<?> wordsProviderClass = classLoader.loadClass(wordsProviderClassName);
-        Class<?> frequenciesProviderClass = classLoader.loadClass(frequenciesProviderClassName);
-        // Create instances; casting types to expected base types
-        Function<String, List<String>> wordsProvider =
-                (Function<String, List<String>>) wordsProviderClass.newInstance();
-        Function<List<String>, List<Map.Entry<String, Integer>>> frequenciesProvider =
-                (Function<List<String>, List<Map.Entry<String, Integer>>>) frequenciesProviderClass.newInstance();
-        EXTRACT_WORDS_FUNC = wordsProvider;
-        FREQUENCIES_FUNC = frequenciesProvider;
-
-        // EXERCISE 19.4
-        String printerClassName = config.getProperty("printer");
-        printerClassName = removeDotClass(printerClassName);
-        Class<?> printerClass = classLoader.loadClass(printerClassName);
-        Consumer<List<Map.Entry<String, Integer>>> printer =
-                (Consumer<List<Map.Entry<String, Integer>>>) printerClass.newInstance();
-        PRINT_FUNC = printer;
+        URLClassLoader classLoader = new PluginClassLoader(pluginsDirUrl, Nineteen.class.getClassLoader());
+        try {
+            // Read the names of classes to be dynamically loaded.
+            String wordsProviderClassName = config.getProperty("words_provider");
+            String frequenciesProviderClassName = config.getProperty("frequencies_provider");
+            // Drop ".class" from class names if present.
+            wordsProviderClassName = removeDotClass(wordsProviderClassName);
+            frequenciesProviderClassName = removeDotClass(frequenciesProviderClassName);
+            // Load the classes dynamically.
+            Class<?> wordsProviderClass = classLoader.loadClass(wordsProviderClassName);
+            Class<?> frequenciesProviderClass = classLoader.loadClass(frequenciesProviderClassName);
+            // Create instances; casting types to expected base types
+            Function<String, List<String>> wordsProvider =
+                    (Function<String, List<String>>) wordsProviderClass.newInstance();
+            Function<List<String>, List<Map.Entry<String, Integer>>> frequenciesProvider =
+                    (Function<List<String>, List<Map.Entry<String, Integer>>>) frequenciesProviderClass.newInstance();
+
+            // EXERCISE 19.4
+            String printerClassName = config.getProperty("printer");
+            printerClassName = removeDotClass(printerClassName);
+            Class<?> printerClass = classLoader.loadClass(printerClassName);
+            Consumer<List<Map.Entry<String, Integer>>> printer =
+                    (Consumer<List<Map.Entry<String, Integer>>>) printerClass.newInstance();
+
+            // Switch over to the new plugins and let go of the old ones.
+            Plugins old = PLUGINS.getAndSet(new Plugins(wordsProvider, frequenciesProvider, printer, classLoader));
+            if (old != null) {
+                old.release();
+            }
+        } catch (Throwable t) {
+            // Do not leak the new class loader (and its open files) if any of the plugins fails to load.
+            try {
+                classLoader.close();
+            } catch (IOException ioe) {
+                // Report the failure to load rather than the failure to clean up.
+                t.addSuppressed(ioe);
+            }
+            throw t;
+        }
     }
 
+    /**
+     * Starts a daemon thread that reloads the plugins whenever the configuration file or the plugins directory
+     * changes. If reloading fails (e.g. because a plugin is only partially written), the current plugins are kept.
+     * @throws IOException
+     */
+    public static void watchPlugins() throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        Set<Path> watched = new HashSet<>();
+        watch(watcher, watched);
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    // Changes tend to come in bursts (compiler output, editor saves); wait for the burst to end.
+                    do {
+                        key.pollEvents();
+                        key.reset();
+                    } while ((key = watcher.poll(PLUGINS_RELOAD_DELAY_MS, TimeUnit.MILLISECONDS)) != null);
+                    try {
+                        loadPlugins();
+                        watch(watcher, watched);
+                        System.err.println("Reloaded plugins");
+                    } catch (ReflectiveOperationException | IOException | RuntimeException | LinkageError e) {
+                        System.err.println("Failed to reload plugins, keeping the current ones: " + e);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                // Stop watching.
+            }
+        }, "nineteen-plugin-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Registers the directory of the configuration file and the configured plugins directory with a watch service.
+     * @param watcher The watch service.
+     * @param watched The directories already registered; updated by this method.
+     * @throws IOException
+     */
+    private static void watch(WatchService watcher, Set<Path> watched) throws IOException {
+        Path configDir = CONFIG.toAbsolutePath().getParent();
+        Path pluginsDir = Paths.get(readConfig().getProperty("pluginsDir")).toAbsolutePath().normalize();
+        for (Path dir : Arrays.asList(configDir.normalize(), pluginsDir)) {
+            if (watched.add(dir)) {
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+    }
+
+    private static Properties readConfig() throws IOException {
+        Properties config = new Properties();
+        try (BufferedReader reader = Files.newBufferedReader(CONFIG)) {
+            config.load(reader);
+        }
+        return config;
+    }
 
     /**
      * Produces a string that is identical to the input string, except that ".class" has been removed from the end of
@@ -1,6 +1,9 @@
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
@@ -19,37 +22,160 @@ import java.util.stream.Stream;
  * 5, but rewrite the main block/method so that all calls are made using reflection. It's ok if you get rid of the .2
  * constraint, but also ok if you don't."
  *
+ * The methods are still discovered through reflection, but rather than invoking each of them through {@link
+ * Method#invoke(Object, Object...)}, {@link Pipeline} binds them into a single {@link MethodHandle} once, which the JIT
+ * compiler can inline as if the methods were called directly.
+ *
  * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
  */
 public class Seventeen {
 
-    public static void main(String[] args) throws InvocationTargetException, IllegalAccessException {
-        // Get the declared methods.
-        Method[] methods = Seventeen.class.getDeclaredMethods();
-        // Build a map from method name to Method instance.
-        Map<String, Method> methodMap = Arrays.stream(methods).collect(Collectors.toMap(m -> m.getName(), m -> m));
-        // Fetch readFile method and invoke it on the provided filepath.
-        Object fileContents = methodMap.get("readFile").invoke(null, args[0]);
-        // Fetch filterCharsAndNormalize method and invoke it on the output of readFile.
-        Object normalizedFileContents = methodMap.get("filterCharsAndNormalize").invoke(null, fileContents);
-        // Fetch scan method and invoke it on the output of filterCharsAndNormalize.
-        Object words = methodMap.get("scan").invoke(null, normalizedFileContents);
-        // removeStopWords returns a function that takes a string (the path to the stop words file).
-        Object filteredWordsFunc = methodMap.get("removeStopWords").invoke(null, words);
-        // Use reflection to get the apply method of the Function instance returned by removeStopWords.
-        Method filteredWordsFuncApply = Arrays.stream(filteredWordsFunc.getClass().getMethods()).
-                filter(m -> m.getName().equals("apply")).findFirst().get();
-        // Invoke apply method, specifying the second command line argument as the path to the stop words file.
-        Object filteredWords = filteredWordsFuncApply.invoke(filteredWordsFunc, args[1]);
-        // Fetch frequencies method and invoke it on the output of the apply call.
-        Object wordFreqs = methodMap.get("frequencies").invoke(null, filteredWords);
-        // Fetch the sort method and invoke it on the output of the frequencies call.
-        Object sortedWordFreqs = methodMap.get("sort").invoke(null, wordFreqs);
-        // Get the sublist method so that we can avoid printing everything.
-        Method subListMethod = Arrays.stream(sortedWordFreqs.getClass().getMethods()).
-                filter(m -> m.getName().equals("subList")).findFirst().get();
-        // Invoke printAll on the top25 entries.
-        methodMap.get("printAll").invoke(null, subListMethod.invoke(sortedWordFreqs, 0, 25));
+    /**
+     * The pipeline of the reflectively discovered methods, taking the path to the input file and the path to the stop
+     * words file. Held in a static final field such that the JIT compiler treats the method handle as a constant and
+     * inlines the entire chain.
+     */
+    private static final MethodHandle PIPELINE = new Pipeline(Seventeen.class).
+            // Fetch readFile method and invoke it on the provided filepath.
+            then("readFile").
+            // Fetch filterCharsAndNormalize method and invoke it on the output of readFile.
+            then("filterCharsAndNormalize").
+            // Fetch scan method and invoke it on the output of filterCharsAndNormalize.
+            then("scan").
+            // removeStopWords returns a function that takes a string (the path to the stop words file).
+            then("removeStopWords").
+            // Invoke the function, specifying the second argument as the path to the stop words file.
+            apply(1).
+            // Fetch frequencies method and invoke it on the output of the apply call.
+            then("frequencies").
+            // Fetch the sort method and invoke it on the output of the frequencies call.
+            then("sort").
+            // Take the sublist so that we can avoid printing everything.
+            subList(0, 25).
+            // Invoke printAll on the top25 entries.
+            then("printAll").
+            build();
+
+    public static void main(String[] args) throws Throwable {
+        PIPELINE.invokeExact(args[0], args[1]);
+    }
+
+    /**
+     * Builds a pipeline of static methods of a class that are looked up by name (discovered through reflection, once
+     * per class), where each method is invoked on the output of the preceding one. The pipeline is a single {@link
+     * MethodHandle} composed of direct method handles, so invoking it involves no reflection, access checks, or
+     * varargs arrays.
+     * <p>
+     * Note that {@link java.lang.invoke.LambdaMetafactory} cannot be used to turn the pipeline into a functional
+     * interface instance, as it only accepts direct method handles, not composed ones. Instead, the pipeline should be
+     * stored in a static final field and invoked with {@link MethodHandle#invokeExact(Object...)}.
+     */
+    static class Pipeline {
+
+        /**
+         * The static methods of each class, by name, as direct method handles.
+         */
+        private static final ClassValue<Map<String, MethodHandle>> STAGES =
+                new ClassValue<Map<String, MethodHandle>>() {
+                    @Override
+                    protected Map<String, MethodHandle> computeValue(Class<?> type) {
+                        return discoverStages(type);
+                    }
+                };
+
+        private static final MethodHandle FUNCTION_APPLY;
+        private static final MethodHandle LIST_SUB_LIST;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                FUNCTION_APPLY = lookup.findVirtual(Function.class, "apply",
+                        MethodType.methodType(Object.class, Object.class));
+                LIST_SUB_LIST = lookup.findVirtual(List.class, "subList",
+                        MethodType.methodType(List.class, int.class, int.class));
+            } catch (ReflectiveOperationException roe) {
+                throw new ExceptionInInitializerError(roe);
+            }
+        }
+
+        private final Map<String, MethodHandle> mStages;
+
+        /**
+         * The pipeline so far. Takes the two arguments of the pipeline.
+         */
+        private MethodHandle mHandle;
+
+        /**
+         * @param type The class whose static methods are the stages of the pipeline.
+         */
+        Pipeline(Class<?> type) {
+            mStages = STAGES.get(type);
+            // Initially, the pipeline returns its first argument.
+            mHandle = MethodHandles.dropArguments(MethodHandles.identity(String.class), 1, String.class);
+        }
+
+        /**
+         * Appends the method with the given name.
+         */
+        Pipeline then(String stage) {
+            MethodHandle h = mStages.get(stage);
+            if (h == null) {
+                throw new IllegalArgumentException("No stage " + stage);
+            }
+            return append(h);
+        }
+
+        /**
+         * Appends the application of the {@link Function} output by the preceding stage to an argument of the pipeline.
+         * @param argument The index of the argument of the pipeline.
+         */
+        Pipeline apply(int argument) {
+            MethodHandle apply = FUNCTION_APPLY.asType(
+                    MethodType.methodType(Object.class, mHandle.type().returnType(), String.class));
+            // (arguments of the pipeline, argument) -> the output of the function.
+            MethodHandle collected = MethodHandles.collectArguments(apply, 0, mHandle);
+            mHandle = MethodHandles.permuteArguments(collected, mHandle.type().changeReturnType(Object.class),
+                    0, 1, argument);
+            return this;
+        }
+
+        /**
+         * Appends taking a sublist of the {@link List} output by the preceding stage.
+         */
+        Pipeline subList(int fromIndex, int toIndex) {
+            return append(MethodHandles.insertArguments(LIST_SUB_LIST, 1, fromIndex, toIndex));
+        }
+
+        private Pipeline append(MethodHandle stage) {
+            // Cast the output of the pipeline so far to the input type of the stage, if needed.
+            MethodHandle adapted = stage.asType(stage.type().changeParameterType(0, mHandle.type().returnType()));
+            mHandle = MethodHandles.filterReturnValue(mHandle, adapted);
+            return this;
+        }
+
+        /**
+         * @return The pipeline, taking the two (string) arguments of the pipeline and returning nothing.
+         */
+        MethodHandle build() {
+            return mHandle.asType(MethodType.methodType(void.class, String.class, String.class));
+        }
+
+        private static Map<String, MethodHandle> discoverStages(Class<?> type) {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Map<String, MethodHandle> stages = new HashMap<>();
+            for (Method m : type.getDeclaredMethods()) {
+                if (Modifier.isStatic(m.getModifiers()) && Modifier.isPublic(m.getModifiers())) {
+                    try {
+                        if (stages.put(m.getName(), lookup.unreflect(m)) != null) {
+                            throw new IllegalArgumentException("Overloaded stage " + m.getName() + " in " + type);
+                        }
+                    } catch (IllegalAccessException iae) {
+                        throw new IllegalArgumentException(iae);
+                    }
+                }
+            }
+            return stages;
+        }
     }
 
     /**
@@ -1,9 +1,32 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Solution for exercises 31.1 and 31.3 (and 30.3) in "Exercises in Programming Style" by Professor C. Lopes.
@@ -22,117 +45,418 @@ import java.util.stream.Stream;
 public class ThirtyOne {
 
 
+    /**
+     * Name of the system property that sets the number of word groups (reduce partitions), e.g.
+     * {@code -Dthirtyone.groups=16}. Defaults to {@link #GROUPS_PER_CORE} times the number of available cores.
+     */
+    public static final String GROUP_COUNT_PROPERTY = "thirtyone.groups";
+
+    /**
+     * The default number of word groups per available core. Having a few more groups than cores lets the reduce stage
+     * balance out groups that happen to be larger than others.
+     */
+    private static final int GROUPS_PER_CORE = 3;
+
+    /**
+     * Name of the system property that sets the spill threshold: the maximum number of (word, count) records that a
+     * single map task or a single word group keeps in memory before they are spilled to disk as a sorted run, e.g.
+     * {@code -Dthirtyone.spillThreshold=100000}. Defaults to a threshold derived from the maximum heap size (see
+     * {@link #defaultSpillThreshold(int, int)}).
+     */
+    public static final String SPILL_THRESHOLD_PROPERTY = "thirtyone.spillThreshold";
+
+    /**
+     * Name of the system property that sets the directory in which spilled runs are stored, e.g.
+     * {@code -Dthirtyone.spillDir=/mnt/scratch}. Defaults to {@code java.io.tmpdir}.
+     */
+    public static final String SPILL_DIR_PROPERTY = "thirtyone.spillDir";
+
+    /**
+     * Rough estimate of the heap footprint (in bytes) of a single in-memory (word, count) record, including the word
+     * itself and the map entry or list slot that holds it.
+     */
+    private static final long RECORD_BYTES = 128;
+
+    /**
+     * The number of most frequent words to print.
+     */
+    static final int TOP_K = 25;
+
     public static void main(String[] args) {
-        List<List<Pair<String, Integer>>> splits = partition(readFile(args[0]), 200)
-                .parallel() // Exercise 30.3: integrate concurrent map
-                .map(ThirtyOne::splitWords).collect(Collectors.toList());
+        JobResult result = run(args[0]);
+        printWordFreqs(result.topWords());
+        // Keep stdout for the word frequencies.
+        result.counters().print(System.err);
+    }
+
+    /**
+     * Runs the map-reduce job on the file identified by {@code filepath}.
+     * @param filepath The path to the input file.
+     * @return The {@link #TOP_K} most frequent words along with the counters of the job.
+     */
+    public static JobResult run(String filepath) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int groupCount = groupCount(cores);
+        JobCounters counters = new JobCounters();
 
-        // Note: sequential bottleneck here.
-        Map<String, List<Pair<String, Integer>>> letterGroups = regroup(splits);
+        // The K-th highest count any reducer has seen so far; shared by all reducers to prune words early.
+        AtomicInteger threshold = new AtomicInteger();
+        List<List<Pair<String, Integer>>> topWords;
+        try (Shuffle shuffle = newShuffle(groupCount, cores)) {
+            long start = System.nanoTime();
+            List<Split> splits = partition(filepath).collect(Collectors.toList());
+            long mapStart = System.nanoTime();
+            counters.stageTime(Stage.PARTITION, mapStart - start);
 
-        List<Pair<String, Integer>> wordFreqs = letterGroups.entrySet().stream()
-                .parallel() // Exercise 30.3: integrate concurrent map
-                .map(e -> countWords(e.getValue()))
-                .collect(ArrayList::new, List::addAll, List::addAll);
+            // Each map task writes its words straight into the word groups, where they are counted as soon as the map
+            // task completes (see Shuffle). The reduce stage only has to wrap up what is left once all map tasks are
+            // done, so there is no separate regroup pass over all words between the map and the reduce stage.
+            IntStream.range(0, splits.size())
+                    .parallel() // Exercise 30.3: integrate concurrent map
+                    .forEach(i -> splitWords(splits.get(i), shuffle, counters.newTask(Stage.MAP, "split " + i)));
+            long reduceStart = System.nanoTime();
+            counters.stageTime(Stage.MAP, reduceStart - mapStart);
 
-        wordFreqs.sort((p1, p2) -> -p1.second().compareTo(p2.second()));
-        for (int i = 0; i < 25; i++) {
-            Pair<String, Integer> freq = wordFreqs.get(i);
+            topWords = IntStream.range(0, groupCount)
+                    .parallel() // Exercise 30.3: integrate concurrent map
+                    .mapToObj(group -> countWords(shuffle, group, threshold,
+                            counters.newTask(Stage.REDUCE, "group " + group)))
+                    .collect(Collectors.toList());
+            long mergeStart = System.nanoTime();
+            counters.stageTime(Stage.REDUCE, mergeStart - reduceStart);
+            counters.spills(shuffle.spilledRuns(), shuffle.spilledRecords());
+
+            List<Pair<String, Integer>> result = mergeTopWords(topWords, TOP_K);
+            counters.stageTime(Stage.MERGE, System.nanoTime() - mergeStart);
+            return new JobResult(result, counters);
+        }
+    }
+
+    /**
+     * Prints the most frequent words.
+     * @param wordFreqs The most frequent words and their frequencies, ordered by decreasing frequency.
+     */
+    static void printWordFreqs(List<Pair<String, Integer>> wordFreqs) {
+        for (Pair<String, Integer> freq : wordFreqs) {
             System.out.println(String.format("%s  -  %d", freq.first(), freq.second()));
         }
     }
 
     /**
-     * Partitions {@code fileContents} into chunks.
-     * @param fileContents The contents of the input file.
-     * @param chunkLineCount The number of lines in each chunk.
-     * @return A stream of chunks.
+     * Merges lists of most frequent words (e.g., those of the individual reducers) into a single list of the
+     * {@code k} most frequent words. As the lists are already ordered, this only looks at the first {@code k} entries
+     * of the lists.
+     * @param lists Lists of (word, count) pairs, each ordered by decreasing count. The lists must not have any words in
+     *              common.
+     * @param k The number of words to keep.
+     * @return The (at most) {@code k} pairs with the highest counts, ordered by decreasing count.
+     */
+    static List<Pair<String, Integer>> mergeTopWords(List<List<Pair<String, Integer>>> lists, int k) {
+        // Heads of the lists, as {list index, position in list}, with the highest count at the top of the queue.
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, lists.size()),
+                (h1, h2) -> -lists.get(h1[0]).get(h1[1]).second().compareTo(lists.get(h2[0]).get(h2[1]).second()));
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heads.add(new int[] { i, 0 });
+            }
+        }
+        List<Pair<String, Integer>> result = new ArrayList<>(k);
+        while (result.size() < k && !heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<Pair<String, Integer>> list = lists.get(head[0]);
+            result.add(list.get(head[1]));
+            if (++head[1] < list.size()) {
+                heads.add(head);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the number of word groups from the {@link #GROUP_COUNT_PROPERTY} system property.
+     * @param cores The number of available cores, from which the default number of word groups is derived.
+     * @return The number of word groups.
+     */
+    static int groupCount(int cores) {
+        int groupCount = Integer.getInteger(GROUP_COUNT_PROPERTY, GROUPS_PER_CORE * cores);
+        if (groupCount < 1) {
+            throw new IllegalArgumentException(GROUP_COUNT_PROPERTY + " must be positive, was " + groupCount);
+        }
+        return groupCount;
+    }
+
+    /**
+     * Creates a shuffle that spills according to the {@link #SPILL_THRESHOLD_PROPERTY} and {@link #SPILL_DIR_PROPERTY}
+     * system properties.
+     * @param groupCount The number of word groups.
+     * @param cores The number of available cores (i.e., the number of concurrently running map tasks).
+     * @return A new, empty shuffle.
+     */
+    static Shuffle newShuffle(int groupCount, int cores) {
+        long spillThreshold = Long.getLong(SPILL_THRESHOLD_PROPERTY, defaultSpillThreshold(groupCount, cores));
+        if (spillThreshold < 1) {
+            throw new IllegalArgumentException(SPILL_THRESHOLD_PROPERTY + " must be positive, was " + spillThreshold);
+        }
+        Path spillDir = Paths.get(System.getProperty(SPILL_DIR_PROPERTY, System.getProperty("java.io.tmpdir")));
+        return new Shuffle(groupCount, spillThreshold, spillDir);
+    }
+
+    /**
+     * Computes the default spill threshold. At any point in time, each running map task and each word group holds at
+     * most a threshold's worth of records in memory, so the threshold is chosen such that all of these together take
+     * up at most half of the maximum heap size.
+     * @param groupCount The number of word groups.
+     * @param cores The number of available cores (i.e., the number of concurrently running map tasks).
+     * @return The default spill threshold.
+     */
+    private static long defaultSpillThreshold(int groupCount, int cores) {
+        return Long.max(1, Runtime.getRuntime().maxMemory() / 2 / RECORD_BYTES / (groupCount + cores));
+    }
+
+    /**
+     * The number of splits to aim for per available core. Having a few more splits than cores lets the map stage
+     * balance out splits that happen to be slower than others.
+     */
+    private static final int SPLITS_PER_CORE = 4;
+
+    /**
+     * Lower bound on the target split size (in bytes) such that small inputs are not cut into needlessly tiny splits.
      */
-    public static Stream<String> partition(String fileContents, int chunkLineCount) {
-        List<String> backingList = new ArrayList<>();
-        int offset = 0;
-        String[] lines = fileContents.split(System.lineSeparator());
-        while (offset < lines.length) {
-            int end = Integer.min(offset + chunkLineCount, lines.length);
-            StringBuilder chunk = new StringBuilder();
-            for (int i = offset; i < end; i++) {
-                // Separate lines in chunk with a space to simplify splitting
-                chunk.append(lines[i] + " ");
+    private static final long MIN_SPLIT_BYTES = 64 * 1024;
+
+    /**
+     * Upper bound on the target split size (in bytes). Must not exceed {@link Integer#MAX_VALUE} as a split is memory
+     * mapped as a single {@link MappedByteBuffer}.
+     */
+    private static final long MAX_SPLIT_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Partitions the file identified by {@code filepath} into byte ranges (splits) of roughly equal size. The target
+     * split size is chosen from the file size and the number of available cores, and each split boundary is moved
+     * forward to the next whitespace byte such that no word is cut in two.
+     * @param filepath The path to the input file.
+     * @return A stream of splits that together cover the entire file.
+     */
+    public static Stream<Split> partition(String filepath) {
+        Path path = Paths.get(filepath);
+        List<Split> backingList = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long splitSize = splitSize(fileSize, Runtime.getRuntime().availableProcessors());
+            long start = 0;
+            while (start < fileSize) {
+                long end = nextWhitespace(channel, Long.min(start + splitSize, fileSize));
+                backingList.add(new Split(path, start, end));
+                start = end;
             }
-            backingList.add(chunk.toString());
-            offset = end;
+        } catch (IOException ioe) {
+            // Same reasoning as in readFile(String).
+            throw new RuntimeException(ioe);
         }
         return backingList.stream();
     }
 
     /**
-     * Splits a line (chunk) into words, and drops all stop words.
-     * @param line A line (chunk) from the input file.
-     * @return The words in the line (chunk).
+     * Computes the target split size for a file.
+     * @param fileSize The size of the file in bytes.
+     * @param cores The number of available cores.
+     * @return The target split size in bytes.
      */
-    private static List<Pair<String, Integer>> splitWords(String line) {
+    private static long splitSize(long fileSize, int cores) {
+        long splitCount = (long) cores * SPLITS_PER_CORE;
+        long splitSize = (fileSize + splitCount - 1) / splitCount;
+        return Long.max(MIN_SPLIT_BYTES, Long.min(MAX_SPLIT_BYTES, splitSize));
+    }
+
+    /**
+     * Finds the position of the first whitespace byte at or after {@code position}.
+     * @param channel The file to search.
+     * @param position The position to start searching from.
+     * @return The position of the first whitespace byte at or after {@code position}, or the size of the file if there
+     *         is no such byte.
+     * @throws IOException if reading from {@code channel} fails.
+     */
+    private static long nextWhitespace(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long fileSize = channel.size();
+        while (position < fileSize) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            for (int i = 0; i < read; i++) {
+                if (Character.isWhitespace(buffer.get(i))) {
+                    return position + i;
+                }
+            }
+            position += read;
+        }
+        return fileSize;
+    }
+
+    /**
+     * Splits a split into words, and drops all stop words. The split is memory mapped and tokenized in place: only
+     * the words that survive the filtering are ever copied out of the mapped file. The occurrences of each word are
+     * combined (counted) within the split, so a word is emitted once per split with its count in that split rather
+     * than once per occurrence. The words are emitted directly into the word group (see {@link #groupOf(String, int)})
+     * they belong to. Should the split contain more distinct words than the spill threshold of {@code shuffle}, the
+     * counts collected so far are spilled to disk such that the memory used by a map task stays bounded.
+     * @param split A split of the input file.
+     * @param shuffle Receives the words in the split and their counts, bucketed by word group.
+     * @param task Receives the counters of this map task.
+     */
+    static void splitWords(Split split, MapOutput shuffle, TaskCounters task) {
+        long start = System.nanoTime();
         // This is kinda silly: we read and parse the stop words file once for each chunk, but this is the way the book
         // does it, so better stay in line with that.
         Set<String> stopWords = Arrays.stream(readFile("../stop_words.txt").split(",")).
                 collect(Collectors.toCollection(HashSet::new));
-        return Arrays.stream(line.replaceAll("[^a-zA-Z\\d\\s]", " ").toLowerCase().split(" ")).
-                filter(w -> w.length() >= 2 && !stopWords.contains(w)).
-                map(w -> new Pair<>(w, 1)).
-                collect(Collectors.toList());
-    }
-
-    /**
-     * Regroups the words into 5 groups (for exercise 31.3)
-     * @param pairsList The words.
-     * @return A map where each entry is a word group.
-     */
-    private static Map<String, List<Pair<String, Integer>>> regroup(List<List<Pair<String, Integer>>> pairsList) {
-        // Exercise 31.3 groups
-        char g1 = 'a';
-        char g2 = 'f';
-        char g3 = 'k';
-        char g4 = 'p';
-        char g5 = 'u';
-        Map<String, List<Pair<String, Integer>>> result = new HashMap<>();
-        for (List<Pair<String, Integer>> pairs : pairsList) {
-            for (Pair<String, Integer> p : pairs) {
-                char group;
-                char firstLetter = p.first().charAt(0);
-                if (firstLetter >= g1 && firstLetter < g2) {
-                    group = g1;
-                } else if (firstLetter >= g2 && firstLetter < g3) {
-                    group = g2;
-                } else if (firstLetter >= g3 && firstLetter < g4) {
-                    group = g3;
-                } else if (firstLetter >= g4 && firstLetter < g5) {
-                    group = g4;
+        // Combiner: one mutable counter per distinct word (per group) such that a repeated word only costs a lookup.
+        int groupCount = shuffle.groupCount();
+        List<Map<String, int[]>> counters = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            counters.add(new HashMap<>());
+        }
+        long distinctWords = 0;
+        long lines = 0;
+        long tokens = 0;
+        long shortWords = 0;
+        long stopWordCount = 0;
+        long outputRecords = 0;
+        MappedByteBuffer bytes = split.map();
+        char[] word = new char[32];
+        int length = 0;
+        // Iterate one position past the end such that a word that ends at the end of the split is also emitted.
+        for (int i = 0, end = bytes.limit(); i <= end; i++) {
+            int b = i < end ? bytes.get(i) : ' ';
+            // Same as the original regex: everything but ASCII letters and digits separates words.
+            if ((b >= 'a' && b <= 'z') || (b >= '0' && b <= '9')) {
+                if (length == word.length) {
+                    word = Arrays.copyOf(word, length * 2);
+                }
+                word[length++] = (char) b;
+            } else if (b >= 'A' && b <= 'Z') {
+                if (length == word.length) {
+                    word = Arrays.copyOf(word, length * 2);
+                }
+                word[length++] = (char) (b + ('a' - 'A'));
+            } else if (length > 0) {
+                tokens++;
+                if (length < 2) {
+                    shortWords++;
                 } else {
-                    // Everything else (including numeric "words", e.g., "2008") goes in group 5.
-                    group = g5;
+                    String w = new String(word, 0, length);
+                    if (stopWords.contains(w)) {
+                        stopWordCount++;
+                    } else {
+                        Map<String, int[]> counter = counters.get(groupOf(w, groupCount));
+                        int[] count = counter.get(w);
+                        if (count == null) {
+                            if (distinctWords == shuffle.spillThreshold()) {
+                                outputRecords += distinctWords;
+                                for (int g = 0; g < groupCount; g++) {
+                                    shuffle.spill(g, toPairs(counters.get(g)));
+                                    counters.get(g).clear();
+                                }
+                                distinctWords = 0;
+                            }
+                            counter.put(w, count = new int[1]);
+                            distinctWords++;
+                        }
+                        count[0]++;
+                    }
                 }
-                result.computeIfAbsent(String.valueOf(group), k -> new ArrayList<>()).add(p);
+                length = 0;
+            }
+            if (b == '\n') {
+                lines++;
             }
         }
-        return result;
+        for (int g = 0; g < groupCount; g++) {
+            shuffle.emit(g, toPairs(counters.get(g)));
+        }
+        outputRecords += distinctWords;
+        task.add(Counter.INPUT_BYTES, split.end() - split.start());
+        task.add(Counter.INPUT_LINES, lines);
+        task.add(Counter.TOKENS, tokens);
+        task.add(Counter.SHORT_WORDS_DROPPED, shortWords);
+        task.add(Counter.STOP_WORDS_DROPPED, stopWordCount);
+        task.add(Counter.WORDS_EMITTED, tokens - shortWords - stopWordCount);
+        task.add(Counter.MAP_OUTPUT_RECORDS, outputRecords);
+        task.wallTime(System.nanoTime() - start);
+    }
+
+    /**
+     * Converts the word counters of a map task into (word, count) pairs.
+     * @param counter The word counters.
+     * @return A list with a (word, count) pair for each entry in {@code counter}.
+     */
+    private static List<Pair<String, Integer>> toPairs(Map<String, int[]> counter) {
+        List<Pair<String, Integer>> pairs = new ArrayList<>(counter.size());
+        for (Map.Entry<String, int[]> e : counter.entrySet()) {
+            pairs.add(new Pair<>(e.getKey(), e.getValue()[0]));
+        }
+        return pairs;
+    }
+
+    /**
+     * Determines what word group a word belongs to. Exercise 31.3 grouped words by their first letter (a-e, f-j, k-o,
+     * p-t and u-z), but first letters are far from evenly distributed in English text, so the words are hashed
+     * instead. The hash only depends on the characters of {@code word}, so it is the same in every JVM.
+     * @param word The word.
+     * @param groupCount The number of word groups.
+     * @return The index of the word group that {@code word} belongs to, in {@code [0, groupCount)}.
+     */
+    static int groupOf(String word, int groupCount) {
+        // Mix the bits of String.hashCode() (the finalizer of MurmurHash3) as similar words have similar hash codes.
+        int h = word.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        // Map the mixed hash onto [0, groupCount) by multiplying instead of using the (slower, biased) remainder.
+        return (int) (((h & 0xffffffffL) * groupCount) >>> 32);
     }
 
     /**
-     * Counts the words in a word group.
-     * @param wordGroup The word group.
-     * @return A list of pairs where each pair contains is a word and its frequency.
+     * Counts the words in a word group and keeps the {@link #TOP_K} most frequent ones. If (parts of) the word group
+     * have been spilled to disk, the spilled runs are merged with the (sorted) in-memory part of the word group.
+     * @param shuffle The output of the map tasks.
+     * @param group The index of the word group.
+     * @param threshold The pruning threshold shared by all word groups (see {@link TopWords}).
+     * @param task Receives the counters of this reduce task.
+     * @return The (at most) {@link #TOP_K} most frequent words of the word group and their frequencies, ordered by
+     *         decreasing frequency.
      */
-    private static List<Pair<String, Integer>> countWords(List<Pair<String, Integer>> wordGroup) {
-        return wordGroup.stream().
-                collect(
-                        Collectors.toMap(
-                                Pair::first,
-                                p -> p,
-                                (p1, p2) -> new Pair<>(p1.first(), p1.second() + p2.second())
-                        )
-                ).
-                entrySet().stream().
-                map(Map.Entry::getValue).
-                collect(Collectors.toList());
+    static List<Pair<String, Integer>> countWords(Shuffle shuffle, int group, AtomicInteger threshold,
+                                                  TaskCounters task) {
+        long start = System.nanoTime();
+        task.add(Counter.REDUCE_INPUT_RECORDS, shuffle.emittedRecords(group));
+        // The regrouping already happened while the map tasks were running (see Shuffle).
+        Map<String, int[]> counts = shuffle.counts(group);
+        TopWords topWords = new TopWords(TOP_K, threshold);
+        List<Path> spilled = shuffle.runs(group);
+        if (spilled.isEmpty()) {
+            for (Map.Entry<String, int[]> e : counts.entrySet()) {
+                topWords.offer(e.getKey(), e.getValue()[0]);
+            }
+            task.add(Counter.DISTINCT_WORDS, counts.size());
+        } else {
+            List<Pair<String, Integer>> inMemory = toPairs(counts);
+            inMemory.sort(Comparator.comparing(Pair::first));
+            long distinctWords = 0;
+            try (Run merged = shuffle.merge(spilled, new ListRun(inMemory))) {
+                while (merged.next()) {
+                    topWords.offer(merged.word(), merged.count());
+                    distinctWords++;
+                }
+            } catch (IOException ioe) {
+                // Same reasoning as in readFile(String).
+                throw new RuntimeException(ioe);
+            }
+            task.add(Counter.DISTINCT_WORDS, distinctWords);
+        }
+        task.wallTime(System.nanoTime() - start);
+        return topWords.toList();
     }
 
     /**
@@ -158,13 +482,919 @@ public class ThirtyOne {
         }
     }
 
+    /**
+     * A byte range {@code [start, end)} of the input file that is processed by a single map task.
+     */
+    public static class Split {
+
+        private final Path mPath;
+        private final long mStart;
+        private final long mEnd;
+
+        Split(Path path, long start, long end) {
+            mPath = path;
+            mStart = start;
+            mEnd = end;
+        }
+
+        Path path() {
+            return mPath;
+        }
+
+        long start() {
+            return mStart;
+        }
+
+        long end() {
+            return mEnd;
+        }
+
+        @Override
+        public String toString() {
+            return mPath + "[" + mStart + ", " + mEnd + ")";
+        }
+
+        /**
+         * Memory maps the byte range of this split.
+         * @return A read-only buffer whose contents are the bytes of this split.
+         */
+        private MappedByteBuffer map() {
+            // The mapping remains valid after the channel is closed.
+            try (FileChannel channel = FileChannel.open(mPath, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, mStart, mEnd - mStart);
+            } catch (IOException ioe) {
+                // Same reasoning as in readFile(String).
+                throw new RuntimeException(ioe);
+            }
+        }
+    }
+
+    /**
+     * The K most frequent words of a single word group (i.e., of a single reducer). As word groups have no words in
+     * common, a word that is less frequent than the K-th most frequent word of any word group cannot be among the K
+     * most frequent words overall. The reducers therefore share a threshold: the highest K-th count seen by any reducer
+     * so far. Words with a count below the threshold are dropped without being materialized.
+     */
+    static class TopWords {
+
+        private final int mK;
+        private final AtomicInteger mThreshold;
+
+        /**
+         * The K most frequent words offered so far, with the least frequent at the top of the queue.
+         */
+        private final PriorityQueue<Pair<String, Integer>> mHeap;
+
+        TopWords(int k, AtomicInteger threshold) {
+            mK = k;
+            mThreshold = threshold;
+            mHeap = new PriorityQueue<>(k + 1, Comparator.comparing(Pair::second));
+        }
+
+        /**
+         * Offers a word (and its final count) to this top-K.
+         * @param word The word.
+         * @param count The number of occurrences of {@code word}.
+         */
+        void offer(String word, int count) {
+            if (count < mThreshold.get() || (mHeap.size() == mK && count <= mHeap.peek().second())) {
+                return;
+            }
+            mHeap.add(new Pair<>(word, count));
+            if (mHeap.size() > mK) {
+                mHeap.poll();
+            }
+            if (mHeap.size() == mK) {
+                int kthCount = mHeap.peek().second();
+                mThreshold.accumulateAndGet(kthCount, Math::max);
+            }
+        }
+
+        /**
+         * @return The words of this top-K, ordered by decreasing count.
+         */
+        List<Pair<String, Integer>> toList() {
+            List<Pair<String, Integer>> result = new ArrayList<>(mHeap);
+            result.sort((p1, p2) -> -p1.second().compareTo(p2.second()));
+            return result;
+        }
+    }
+
+    /**
+     * The stages of the job, in the order in which they run.
+     */
+    public enum Stage {
+        /**
+         * Cutting the input file into splits.
+         */
+        PARTITION,
+        /**
+         * Tokenizing, filtering and combining the splits (one task per split), and counting the words of the splits
+         * in their word groups as the map tasks complete.
+         */
+        MAP,
+        /**
+         * Finishing the counting of each word group and keeping the most frequent words (one task per word group).
+         */
+        REDUCE,
+        /**
+         * Merging the most frequent words of the word groups.
+         */
+        MERGE
+    }
+
+    /**
+     * Counters kept per task, Hadoop-style. The value of a counter for the job is the sum of its values for all tasks.
+     */
+    public enum Counter {
+        /**
+         * Map: the number of bytes in the split.
+         */
+        INPUT_BYTES,
+        /**
+         * Map: the number of line breaks in the split.
+         */
+        INPUT_LINES,
+        /**
+         * Map: the number of tokens in the split.
+         */
+        TOKENS,
+        /**
+         * Map: the number of tokens dropped for being shorter than two characters.
+         */
+        SHORT_WORDS_DROPPED,
+        /**
+         * Map: the number of tokens dropped for being stop words.
+         */
+        STOP_WORDS_DROPPED,
+        /**
+         * Map: the number of tokens that made it through the filters.
+         */
+        WORDS_EMITTED,
+        /**
+         * Map: the number of (word, count) records emitted after combining.
+         */
+        MAP_OUTPUT_RECORDS,
+        /**
+         * Reduce: the number of (word, count) records in the word group.
+         */
+        REDUCE_INPUT_RECORDS,
+        /**
+         * Reduce: the number of distinct words in the word group.
+         */
+        DISTINCT_WORDS
+    }
+
+    /**
+     * The counters and the wall time of a single task. Only to be updated by the thread that runs the task.
+     */
+    public static class TaskCounters {
+
+        private final String mName;
+        private final long[] mValues = new long[Counter.values().length];
+        private long mWallNanos;
+
+        public TaskCounters(String name) {
+            mName = name;
+        }
+
+        void add(Counter counter, long value) {
+            mValues[counter.ordinal()] += value;
+        }
+
+        void wallTime(long nanos) {
+            mWallNanos = nanos;
+        }
+
+        /**
+         * @return The name of the task, e.g., {@code "split 3"}.
+         */
+        public String name() {
+            return mName;
+        }
+
+        /**
+         * @param counter The counter.
+         * @return The value of {@code counter} for this task.
+         */
+        public long get(Counter counter) {
+            return mValues[counter.ordinal()];
+        }
+
+        /**
+         * @return The wall time of the task in nanoseconds.
+         */
+        public long wallNanos() {
+            return mWallNanos;
+        }
+    }
+
+    /**
+     * The counters of a job: the counters of each of its tasks, the wall time of each stage and the amount of data
+     * spilled to disk.
+     */
+    public static class JobCounters {
+
+        /**
+         * A task is considered a straggler if it takes more than this many times the median wall time of the tasks of
+         * its stage.
+         */
+        private static final double STRAGGLER_FACTOR = 2.0;
+
+        private final Map<Stage, Queue<TaskCounters>> mTasks = new EnumMap<>(Stage.class);
+        private final long[] mStageNanos = new long[Stage.values().length];
+        private int mSpilledRuns;
+        private long mSpilledRecords;
+
+        JobCounters() {
+            for (Stage stage : Stage.values()) {
+                mTasks.put(stage, new ConcurrentLinkedQueue<>());
+            }
+        }
+
+        /**
+         * Registers a new task.
+         * @param stage The stage the task belongs to.
+         * @param name The name of the task.
+         * @return The (empty) counters of the new task.
+         */
+        TaskCounters newTask(Stage stage, String name) {
+            TaskCounters task = new TaskCounters(name);
+            mTasks.get(stage).add(task);
+            return task;
+        }
+
+        void stageTime(Stage stage, long nanos) {
+            mStageNanos[stage.ordinal()] = nanos;
+        }
+
+        void spills(int runs, long records) {
+            mSpilledRuns = runs;
+            mSpilledRecords = records;
+        }
+
+        /**
+         * @param stage The stage.
+         * @return The wall time of {@code stage} in nanoseconds.
+         */
+        public long stageNanos(Stage stage) {
+            return mStageNanos[stage.ordinal()];
+        }
+
+        /**
+         * @param stage The stage.
+         * @return The counters of the tasks of {@code stage}.
+         */
+        public List<TaskCounters> tasks(Stage stage) {
+            return new ArrayList<>(mTasks.get(stage));
+        }
+
+        /**
+         * @param counter The counter.
+         * @return The value of {@code counter} for the job (i.e., summed over all tasks).
+         */
+        public long total(Counter counter) {
+            long total = 0;
+            for (Queue<TaskCounters> tasks : mTasks.values()) {
+                for (TaskCounters task : tasks) {
+                    total += task.get(counter);
+                }
+            }
+            return total;
+        }
+
+        /**
+         * @return The number of runs spilled to disk.
+         */
+        public int spilledRuns() {
+            return mSpilledRuns;
+        }
+
+        /**
+         * @return The number of (word, count) records spilled to disk.
+         */
+        public long spilledRecords() {
+            return mSpilledRecords;
+        }
+
+        /**
+         * @param stage The stage.
+         * @return The tasks of {@code stage} that took more than {@link #STRAGGLER_FACTOR} times the median wall time
+         *         of the tasks of {@code stage}, slowest first.
+         */
+        public List<TaskCounters> stragglers(Stage stage) {
+            List<TaskCounters> tasks = tasks(stage);
+            if (tasks.size() < 2) {
+                return Collections.emptyList();
+            }
+            long median = median(tasks, TaskCounters::wallNanos);
+            return tasks.stream().
+                    filter(t -> t.wallNanos() > STRAGGLER_FACTOR * median).
+                    sorted((t1, t2) -> Long.compare(t2.wallNanos(), t1.wallNanos())).
+                    collect(Collectors.toList());
+        }
+
+        /**
+         * Prints the counters, a per-stage summary and the stragglers of each stage.
+         * @param out Where to print to.
+         */
+        public void print(PrintStream out) {
+            out.println("Counters:");
+            for (Counter counter : Counter.values()) {
+                out.println(String.format("  %-20s %,14d", counter, total(counter)));
+            }
+            out.println(String.format("  %-20s %,14d", "SPILLED_RUNS", mSpilledRuns));
+            out.println(String.format("  %-20s %,14d", "SPILLED_RECORDS", mSpilledRecords));
+            out.println("Stages:");
+            for (Stage stage : Stage.values()) {
+                List<TaskCounters> tasks = tasks(stage);
+                String line = String.format("  %-20s %11.1f ms", stage, stageNanos(stage) / 1e6);
+                if (!tasks.isEmpty()) {
+                    line += String.format("  %4d tasks, min / median / max task %.1f / %.1f / %.1f ms", tasks.size(),
+                            tasks.stream().mapToLong(TaskCounters::wallNanos).min().getAsLong() / 1e6,
+                            median(tasks, TaskCounters::wallNanos) / 1e6,
+                            tasks.stream().mapToLong(TaskCounters::wallNanos).max().getAsLong() / 1e6);
+                }
+                out.println(line);
+            }
+            List<TaskCounters> reduceTasks = tasks(Stage.REDUCE);
+            if (!reduceTasks.isEmpty()) {
+                ToLongFunction<TaskCounters> records = t -> t.get(Counter.REDUCE_INPUT_RECORDS);
+                out.println(String.format("Records per word group: min / median / max %,d / %,d / %,d",
+                        reduceTasks.stream().mapToLong(records).min().getAsLong(), median(reduceTasks, records),
+                        reduceTasks.stream().mapToLong(records).max().getAsLong()));
+            }
+            out.println("Stragglers:");
+            boolean none = true;
+            for (Stage stage : Stage.values()) {
+                List<TaskCounters> tasks = tasks(stage);
+                for (TaskCounters straggler : stragglers(stage)) {
+                    out.println(String.format("  %s %s: %.1f ms (%.1fx median)", stage, straggler.name(),
+                            straggler.wallNanos() / 1e6,
+                            straggler.wallNanos() / (double) median(tasks, TaskCounters::wallNanos)));
+                    none = false;
+                }
+            }
+            if (none) {
+                out.println("  none");
+            }
+        }
+
+        private static long median(List<TaskCounters> tasks, ToLongFunction<TaskCounters> value) {
+            long[] values = tasks.stream().mapToLong(value).sorted().toArray();
+            return values[values.length / 2];
+        }
+    }
+
+    /**
+     * The outcome of a job.
+     */
+    public static class JobResult {
+
+        private final List<Pair<String, Integer>> mTopWords;
+        private final JobCounters mCounters;
+
+        JobResult(List<Pair<String, Integer>> topWords, JobCounters counters) {
+            mTopWords = topWords;
+            mCounters = counters;
+        }
+
+        /**
+         * @return The {@link #TOP_K} most frequent words and their frequencies, ordered by decreasing frequency.
+         */
+        public List<Pair<String, Integer>> topWords() {
+            return mTopWords;
+        }
+
+        /**
+         * @return The counters of the job.
+         */
+        public JobCounters counters() {
+            return mCounters;
+        }
+    }
+
+    /**
+     * Where a map task sends its output to.
+     */
+    interface MapOutput {
+
+        /**
+         * @return The number of word groups.
+         */
+        int groupCount();
+
+        /**
+         * @return The maximum number of distinct words a map task may hold in memory before it must spill them.
+         */
+        long spillThreshold();
+
+        /**
+         * Receives the (combined) output of a map task for a single word group.
+         * @param group The index of the word group.
+         * @param words The (word, count) pairs that belong to {@code group}. Contains no duplicate words.
+         */
+        void emit(int group, List<Pair<String, Integer>> words);
+
+        /**
+         * Receives a part of the output of a map task for a single word group that the map task had to spill, as it
+         * passed the spill threshold.
+         * @param group The index of the word group.
+         * @param words The (word, count) pairs that belong to {@code group}. Contains no duplicate words.
+         */
+        void spill(int group, List<Pair<String, Integer>> words);
+    }
+
+    /**
+     * The shuffle between the map and the reduce stage: holds the output of the map tasks, bucketed by word group.
+     * The shuffle is streaming: the output of a map task is merged into the in-memory word counts of each word group
+     * as soon as it is emitted, rather than after all map tasks are done. The merging is done by the emitting thread,
+     * unless another thread is already merging into the same word group, in which case that thread merges the output
+     * before it returns, so map tasks never wait for each other. A word group thus consists of pending map output,
+     * in-memory word counts and sorted runs that have been spilled to disk. Once the in-memory word counts of a word
+     * group hold more words than the spill threshold, they are sorted and spilled as a single run. Runs are compressed
+     * and stored in a temporary directory that is created on the first spill and removed when the shuffle is closed.
+     */
+    static class Shuffle implements MapOutput, Closeable {
+
+        /**
+         * The maximum number of runs that are merged at once. Each open run holds an input buffer and an inflater, so
+         * if more runs than this are to be merged, they are first merged into intermediate runs.
+         */
+        private static final int MAX_MERGE_WIDTH = 64;
+
+        private final int mGroupCount;
+        private final long mSpillThreshold;
+        private final Path mSpillParentDir;
+        private final List<Queue<List<Pair<String, Integer>>>> mPending;
+        private final List<ReentrantLock> mLocks;
+
+        /**
+         * The number of lists of map output of each word group that have been emitted but not yet merged.
+         */
+        private final AtomicIntegerArray mPendingCounts;
+
+        /**
+         * The in-memory word counts of each word group. Guarded by the lock of the word group.
+         */
+        private final List<Map<String, int[]>> mCounts;
+        private final List<Queue<Path>> mRuns;
+        private final AtomicInteger mRunCounter = new AtomicInteger();
+        private final AtomicLongArray mEmittedRecords;
+        private final AtomicInteger mSpilledRuns = new AtomicInteger();
+        private final AtomicLong mSpilledRecords = new AtomicLong();
+
+        /**
+         * Directory that holds the spilled runs. Created on the first spill. Guarded by {@code this}.
+         */
+        private Path mSpillDir;
+
+        Shuffle(int groupCount, long spillThreshold, Path spillParentDir) {
+            mGroupCount = groupCount;
+            mSpillThreshold = spillThreshold;
+            mSpillParentDir = spillParentDir;
+            mPending = new ArrayList<>(groupCount);
+            mLocks = new ArrayList<>(groupCount);
+            mCounts = new ArrayList<>(groupCount);
+            mRuns = new ArrayList<>(groupCount);
+            for (int i = 0; i < groupCount; i++) {
+                mPending.add(new ConcurrentLinkedQueue<>());
+                mLocks.add(new ReentrantLock());
+                mCounts.add(new HashMap<>());
+                mRuns.add(new ConcurrentLinkedQueue<>());
+            }
+            mEmittedRecords = new AtomicLongArray(groupCount);
+            mPendingCounts = new AtomicIntegerArray(groupCount);
+        }
+
+        @Override
+        public int groupCount() {
+            return mGroupCount;
+        }
+
+        @Override
+        public long spillThreshold() {
+            return mSpillThreshold;
+        }
+
+        /**
+         * Adds the (combined) output of a map task for a single word group to the word counts of that group.
+         * @param group The index of the word group.
+         * @param words The (word, count) pairs that belong to {@code group}.
+         */
+        @Override
+        public void emit(int group, List<Pair<String, Integer>> words) {
+            if (words.isEmpty()) {
+                return;
+            }
+            mEmittedRecords.addAndGet(group, words.size());
+            // The thread that takes the pending count from zero merges on behalf of every thread that emits while it
+            // is merging: it does not stop until it has merged as many lists as were counted, so no output is left
+            // behind in the pending queue. The output is counted before it is queued, so the count never drops below
+            // zero, but it may run ahead of the queue: an emitter may have counted its output and not yet queued it.
+            // The merging thread then yields until that output shows up.
+            boolean merging = mPendingCounts.getAndIncrement(group) == 0;
+            mPending.get(group).add(words);
+            if (!merging) {
+                return;
+            }
+            ReentrantLock lock = mLocks.get(group);
+            int merged;
+            do {
+                lock.lock();
+                try {
+                    merged = mergePending(group);
+                } finally {
+                    lock.unlock();
+                }
+                if (merged == 0) {
+                    Thread.yield();
+                }
+            } while (mPendingCounts.addAndGet(group, -merged) != 0);
+        }
+
+        /**
+         * Merges the pending map output of a word group into the word counts of the group, and spills the word counts
+         * of the group if they now hold more words than the spill threshold. The caller must hold the lock of the
+         * word group.
+         * @param group The index of the word group.
+         * @return The number of lists of map output that were merged.
+         */
+        private int mergePending(int group) {
+            Map<String, int[]> counts = mCounts.get(group);
+            List<Pair<String, Integer>> words;
+            int merged = 0;
+            while ((words = mPending.get(group).poll()) != null) {
+                merged++;
+                for (Pair<String, Integer> p : words) {
+                    counts.computeIfAbsent(p.first(), k -> new int[1])[0] += p.second();
+                }
+                if (counts.size() > mSpillThreshold) {
+                    spillRun(group, toPairs(counts));
+                    counts.clear();
+                }
+            }
+            return merged;
+        }
+
+        /**
+         * Sorts {@code words} and writes them to disk as a run of word group {@code group}.
+         * @param group The index of the word group.
+         * @param words The (word, count) pairs that belong to {@code group}. Must not contain duplicate words.
+         */
+        @Override
+        public void spill(int group, List<Pair<String, Integer>> words) {
+            spillRun(group, words);
+            mEmittedRecords.addAndGet(group, words.size());
+        }
+
+        private void spillRun(int group, List<Pair<String, Integer>> words) {
+            if (words.isEmpty()) {
+                return;
+            }
+            mSpilledRuns.incrementAndGet();
+            mSpilledRecords.addAndGet(words.size());
+            List<Pair<String, Integer>> sorted = new ArrayList<>(words);
+            sorted.sort(Comparator.comparing(Pair::first));
+            try {
+                Path path = newRunPath();
+                try (RunWriter writer = new RunWriter(path)) {
+                    for (Pair<String, Integer> p : sorted) {
+                        writer.write(p.first(), p.second());
+                    }
+                }
+                mRuns.get(group).add(path);
+            } catch (IOException ioe) {
+                // Same reasoning as in readFile(String).
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        /**
+         * @param group The index of the word group.
+         * @return The number of (word, count) records that map tasks have emitted for {@code group}.
+         */
+        long emittedRecords(int group) {
+            return mEmittedRecords.get(group);
+        }
+
+        /**
+         * @return The number of runs that have been spilled to disk (excluding intermediate merges).
+         */
+        int spilledRuns() {
+            return mSpilledRuns.get();
+        }
+
+        /**
+         * @return The number of (word, count) records that have been spilled to disk (excluding intermediate merges).
+         */
+        long spilledRecords() {
+            return mSpilledRecords.get();
+        }
+
+        /**
+         * Returns the in-memory word counts of a word group. Only to be called once the map stage is done, at which
+         * point all map output has been merged by the emitting threads.
+         * @param group The index of the word group.
+         * @return The in-memory word counts of {@code group}.
+         */
+        Map<String, int[]> counts(int group) {
+            ReentrantLock lock = mLocks.get(group);
+            // Taking the lock makes the merges of the emitting threads visible.
+            lock.lock();
+            try {
+                return mCounts.get(group);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Removes and returns the spilled runs of a word group. Only to be called once the map stage is done.
+         * @param group The index of the word group.
+         * @return The files that hold the spilled runs of {@code group}.
+         */
+        List<Path> runs(int group) {
+            List<Path> result = new ArrayList<>();
+            Path run;
+            while ((run = mRuns.get(group).poll()) != null) {
+                result.add(run);
+            }
+            return result;
+        }
+
+        /**
+         * Merges spilled runs and an additional (in-memory) run into a single sorted run in which each word occurs
+         * once, with the sum of its counts in the merged runs. The spilled runs are deleted as they are consumed.
+         * @param spilled The spilled runs.
+         * @param other The additional run.
+         * @return The merged run.
+         * @throws IOException if reading or writing a spilled run fails.
+         */
+        Run merge(List<Path> spilled, Run other) throws IOException {
+            Deque<Path> pending = new ArrayDeque<>(spilled);
+            // Leave room for the additional run in the final merge.
+            while (pending.size() > MAX_MERGE_WIDTH - 1) {
+                List<Run> batch = new ArrayList<>(MAX_MERGE_WIDTH);
+                for (int i = 0; i < MAX_MERGE_WIDTH; i++) {
+                    batch.add(new FileRun(pending.poll()));
+                }
+                Path path = newRunPath();
+                try (Run merged = new MergedRun(batch); RunWriter writer = new RunWriter(path)) {
+                    while (merged.next()) {
+                        writer.write(merged.word(), merged.count());
+                    }
+                }
+                pending.add(path);
+            }
+            List<Run> runs = new ArrayList<>(pending.size() + 1);
+            for (Path path : pending) {
+                runs.add(new FileRun(path));
+            }
+            runs.add(other);
+            return new MergedRun(runs);
+        }
+
+        private Path newRunPath() throws IOException {
+            synchronized (this) {
+                if (mSpillDir == null) {
+                    mSpillDir = Files.createTempDirectory(mSpillParentDir, "thirtyone-spill");
+                }
+            }
+            return mSpillDir.resolve("run-" + mRunCounter.getAndIncrement());
+        }
+
+        /**
+         * Removes the spill directory along with any runs that are left in it.
+         */
+        @Override
+        public synchronized void close() {
+            if (mSpillDir == null) {
+                return;
+            }
+            try (Stream<Path> runs = Files.list(mSpillDir)) {
+                for (Path run : (Iterable<Path>) runs::iterator) {
+                    Files.deleteIfExists(run);
+                }
+                Files.deleteIfExists(mSpillDir);
+            } catch (IOException ioe) {
+                // Same reasoning as in readFile(String).
+                throw new RuntimeException(ioe);
+            }
+        }
+    }
+
+    /**
+     * A cursor over a sequence of (word, count) records, sorted by word.
+     */
+    private interface Run extends Closeable {
+
+        /**
+         * Advances the cursor to the next record.
+         * @return {@code true} if the cursor was moved to the next record, {@code false} if there are no more records.
+         * @throws IOException if reading the next record fails.
+         */
+        boolean next() throws IOException;
+
+        /**
+         * @return The word of the current record.
+         */
+        String word();
+
+        /**
+         * @return The count of the current record.
+         */
+        int count();
+    }
+
+    /**
+     * A run backed by an in-memory list of (word, count) pairs.
+     */
+    private static class ListRun implements Run {
+
+        private final Iterator<Pair<String, Integer>> mIterator;
+        private Pair<String, Integer> mCurrent;
+
+        /**
+         * @param sorted The (word, count) pairs, sorted by word.
+         */
+        ListRun(List<Pair<String, Integer>> sorted) {
+            mIterator = sorted.iterator();
+        }
+
+        @Override
+        public boolean next() {
+            mCurrent = mIterator.hasNext() ? mIterator.next() : null;
+            return mCurrent != null;
+        }
+
+        @Override
+        public String word() {
+            return mCurrent.first();
+        }
+
+        @Override
+        public int count() {
+            return mCurrent.second();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Writes a run to disk. A run file is a deflate compressed sequence of records, each of which is the length of the
+     * word, the (ASCII) characters of the word and the count. A record with a word length of 0 terminates the run.
+     */
+    private static class RunWriter implements Closeable {
+
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+        private final DataOutputStream mOut;
+
+        RunWriter(Path path) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(path)), mDeflater)));
+        }
+
+        void write(String word, int count) throws IOException {
+            mOut.writeInt(word.length());
+            // Words only consist of ASCII letters and digits, so writing the low byte of each char suffices.
+            mOut.writeBytes(word);
+            mOut.writeInt(count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mOut.writeInt(0);
+                mOut.close();
+            } finally {
+                mDeflater.end();
+            }
+        }
+    }
+
+    /**
+     * A run that reads a file written by a {@link RunWriter}. The file is deleted when the run is closed.
+     */
+    private static class FileRun implements Run {
+
+        private final Path mPath;
+        private final DataInputStream mIn;
+        private String mWord;
+        private int mCount;
+
+        FileRun(Path path) throws IOException {
+            mPath = path;
+            mIn = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+                    new BufferedInputStream(Files.newInputStream(path)))));
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            int length = mIn.readInt();
+            if (length == 0) {
+                mWord = null;
+                return false;
+            }
+            byte[] word = new byte[length];
+            mIn.readFully(word);
+            mWord = new String(word, StandardCharsets.US_ASCII);
+            mCount = mIn.readInt();
+            return true;
+        }
+
+        @Override
+        public String word() {
+            return mWord;
+        }
+
+        @Override
+        public int count() {
+            return mCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+            Files.deleteIfExists(mPath);
+        }
+    }
+
+    /**
+     * A k-way merge of runs: a run in which each word of the merged runs occurs once, with the sum of its counts in
+     * the merged runs.
+     */
+    private static class MergedRun implements Run {
+
+        private final List<Run> mRuns;
+        private final PriorityQueue<Run> mHeads;
+        private String mWord;
+        private int mCount;
+
+        MergedRun(List<Run> runs) throws IOException {
+            mRuns = runs;
+            mHeads = new PriorityQueue<>(Math.max(1, runs.size()), Comparator.comparing(Run::word));
+            for (Run run : runs) {
+                if (run.next()) {
+                    mHeads.add(run);
+                }
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (mHeads.isEmpty()) {
+                mWord = null;
+                return false;
+            }
+            mWord = mHeads.peek().word();
+            mCount = 0;
+            // Also sums duplicates within a single run as the run is re-added to the heap after each record.
+            while (!mHeads.isEmpty() && mHeads.peek().word().equals(mWord)) {
+                Run head = mHeads.poll();
+                mCount += head.count();
+                if (head.next()) {
+                    mHeads.add(head);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String word() {
+            return mWord;
+        }
+
+        @Override
+        public int count() {
+            return mCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (Run run : mRuns) {
+                try {
+                    run.close();
+                } catch (IOException ioe) {
+                    failure = ioe;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
     /**
      * Basic, immutable helper pair/tuple.
      *
      * @param <T1> Type of element 1 of the pair.
      * @param <T2> Type of element 2 of the pair.
      */
-    private static class Pair<T1, T2> {
+    static class Pair<T1, T2> {
 
         private final T1 mItem1;
         private final T2 mItem2;
@@ -174,11 +1404,11 @@ public class ThirtyOne {
             mItem2 = item2;
         }
 
-        private T1 first() {
+        T1 first() {
             return mItem1;
         }
 
-        private T2 second() {
+        T2 second() {
             return mItem2;
         }
     }
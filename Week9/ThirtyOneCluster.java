@@ -0,0 +1,415 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Multi-JVM ("local cluster") mode for the "Double Map Reduce" solution in {@link ThirtyOne}. A coordinator hands out
+ * the splits of the input file to a number of worker JVMs over TCP, one split at a time as workers ask for them, so a
+ * worker that is held up (e.g., by a long GC pause) simply ends up processing fewer splits. Each worker maps its
+ * splits with {@link ThirtyOne#splitWords(ThirtyOne.Split, ThirtyOne.MapOutput, ThirtyOne.TaskCounters)} and sends
+ * the output for each word group directly to the worker that owns (reduces) that group. Once a worker has received
+ * the output of all other workers, it reduces the groups it owns and sends its 25 most frequent words to the
+ * coordinator, which merges them into the overall 25 most frequent words.
+ *
+ * <p>
+ *     Usage:
+ *     <ul>
+ *         <li>{@code java ThirtyOneCluster <input file> [worker count]} starts the coordinator, which spawns the
+ *         workers as local JVMs (2 by default).</li>
+ *         <li>{@code java -Dthirtyone.cluster.port=<port> ThirtyOneCluster <input file> <worker count>} starts the
+ *         coordinator without spawning any workers; it instead waits for {@code <worker count>} workers to connect on
+ *         {@code <port>}.</li>
+ *         <li>{@code java ThirtyOneCluster --worker <coordinator host>:<port>} starts a worker. The input file must be
+ *         available at the same (absolute) path on the worker's host as on the coordinator's host.</li>
+ *     </ul>
+ *     The {@code thirtyone.*} system properties of {@link ThirtyOne} apply to the coordinator (number of word groups)
+ *     and the workers (spilling), and are passed on to spawned workers.
+ * </p>
+ *
+ * @author Janus Varmarken {@literal <jvarmark@uci.edu>}
+ */
+public class ThirtyOneCluster {
+
+    /**
+     * Name of the system property that sets the port the coordinator listens on for workers. If set, the coordinator
+     * waits for external workers instead of spawning local ones.
+     */
+    public static final String PORT_PROPERTY = "thirtyone.cluster.port";
+
+    /**
+     * The number of workers the coordinator spawns if no worker count is given.
+     */
+    private static final int DEFAULT_WORKER_COUNT = 2;
+
+    /*
+     * Tags of the messages exchanged between the coordinator and a worker.
+     */
+    private static final byte NEXT_SPLIT = 1;
+    private static final byte SPLIT = 2;
+    private static final byte NO_MORE_SPLITS = 3;
+    private static final byte RESULT = 4;
+
+    /**
+     * Word group value that marks the end of the stream of map output sent from one worker to another.
+     */
+    private static final int END_OF_MAP_OUTPUT = -1;
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        if (args[0].equals("--worker")) {
+            new Worker(args[1]).run();
+        } else {
+            coordinate(args[0], args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WORKER_COUNT);
+        }
+    }
+
+    /**
+     * Runs the coordinator.
+     * @param filepath The path to the input file.
+     * @param workerCount The number of workers.
+     */
+    private static void coordinate(String filepath, int workerCount)
+            throws IOException, InterruptedException, ExecutionException {
+        int groupCount = ThirtyOne.groupCount(Runtime.getRuntime().availableProcessors());
+        // Workers may run in a different working directory, so hand them absolute paths.
+        Queue<ThirtyOne.Split> splits = ThirtyOne.partition(Paths.get(filepath).toAbsolutePath().toString())
+                .collect(Collectors.toCollection(ConcurrentLinkedQueue::new));
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+        List<Process> processes = new ArrayList<>();
+        List<Socket> sockets = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        List<List<ThirtyOne.Pair<String, Integer>>> topWords = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(port == null ? 0 : port)) {
+            if (port == null) {
+                for (int i = 0; i < workerCount; i++) {
+                    processes.add(spawnWorker("localhost:" + server.getLocalPort()));
+                }
+            }
+            // Workers register with the address on which they accept the map output of other workers.
+            List<String> shuffleAddresses = new ArrayList<>();
+            for (int i = 0; i < workerCount; i++) {
+                Socket socket = server.accept();
+                sockets.add(socket);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                shuffleAddresses.add(in.readUTF());
+            }
+            // Tell each worker who it is and where its peers are.
+            for (int i = 0; i < workerCount; i++) {
+                DataOutputStream out = new DataOutputStream(sockets.get(i).getOutputStream());
+                out.writeInt(i);
+                out.writeInt(groupCount);
+                out.writeInt(workerCount);
+                for (String address : shuffleAddresses) {
+                    out.writeUTF(address);
+                }
+                out.flush();
+            }
+            List<Future<List<ThirtyOne.Pair<String, Integer>>>> results = new ArrayList<>();
+            for (Socket socket : sockets) {
+                results.add(executor.submit(() -> serve(socket, splits)));
+            }
+            for (Future<List<ThirtyOne.Pair<String, Integer>>> result : results) {
+                topWords.add(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+        ThirtyOne.printWordFreqs(ThirtyOne.mergeTopWords(topWords, ThirtyOne.TOP_K));
+    }
+
+    /**
+     * Starts a worker in a new local JVM.
+     * @param coordinatorAddress The address of the coordinator.
+     * @return The worker process.
+     */
+    private static Process spawnWorker(String coordinatorAddress) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        // Pass on the ThirtyOne settings (e.g., the spill threshold).
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("thirtyone.") && !name.equals(PORT_PROPERTY)) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add(ThirtyOneCluster.class.getName());
+        command.add("--worker");
+        command.add(coordinatorAddress);
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * Serves a single worker: hands out splits until there are none left, then receives the worker's most frequent
+     * words.
+     * @param socket The connection to the worker.
+     * @param splits The splits that have not been handed out yet (shared by all workers).
+     * @return The most frequent words of the word groups owned by the worker, ordered by decreasing frequency.
+     */
+    private static List<ThirtyOne.Pair<String, Integer>> serve(Socket socket, Queue<ThirtyOne.Split> splits)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        while (true) {
+            byte tag = in.readByte();
+            switch (tag) {
+                case NEXT_SPLIT:
+                    ThirtyOne.Split split = splits.poll();
+                    if (split == null) {
+                        out.writeByte(NO_MORE_SPLITS);
+                    } else {
+                        out.writeByte(SPLIT);
+                        out.writeUTF(split.path().toString());
+                        out.writeLong(split.start());
+                        out.writeLong(split.end());
+                    }
+                    out.flush();
+                    break;
+                case RESULT:
+                    return readPairs(in);
+                default:
+                    throw new IllegalStateException("Unexpected message from worker: " + tag);
+            }
+        }
+    }
+
+    /**
+     * Writes (word, count) pairs as their number followed by the pairs.
+     */
+    private static void writePairs(DataOutputStream out, List<ThirtyOne.Pair<String, Integer>> pairs)
+            throws IOException {
+        out.writeInt(pairs.size());
+        for (ThirtyOne.Pair<String, Integer> p : pairs) {
+            out.writeInt(p.first().length());
+            // Words only consist of ASCII letters and digits, so writing the low byte of each char suffices.
+            out.writeBytes(p.first());
+            out.writeInt(p.second());
+        }
+    }
+
+    /**
+     * Reads (word, count) pairs written by {@link #writePairs(DataOutputStream, List)}.
+     */
+    private static List<ThirtyOne.Pair<String, Integer>> readPairs(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<ThirtyOne.Pair<String, Integer>> pairs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            byte[] word = new byte[in.readInt()];
+            in.readFully(word);
+            pairs.add(new ThirtyOne.Pair<>(new String(word, StandardCharsets.US_ASCII), in.readInt()));
+        }
+        return pairs;
+    }
+
+    /**
+     * A worker: maps the splits it is handed by the coordinator and reduces the word groups it owns. Word group
+     * {@code g} is owned by worker {@code g % workerCount}.
+     */
+    private static class Worker implements ThirtyOne.MapOutput {
+
+        private final String mCoordinatorHost;
+        private final int mCoordinatorPort;
+
+        private DataInputStream mCoordinatorIn;
+        private DataOutputStream mCoordinatorOut;
+        private int mIndex;
+        private int mWorkerCount;
+        private ThirtyOne.Shuffle mShuffle;
+
+        /**
+         * The connections to the other workers, indexed by worker. The element for this worker is {@code null}.
+         */
+        private final List<DataOutputStream> mPeers = new ArrayList<>();
+
+        Worker(String coordinatorAddress) {
+            int colon = coordinatorAddress.lastIndexOf(':');
+            mCoordinatorHost = coordinatorAddress.substring(0, colon);
+            mCoordinatorPort = Integer.parseInt(coordinatorAddress.substring(colon + 1));
+        }
+
+        void run() throws IOException, InterruptedException, ExecutionException {
+            int cores = Runtime.getRuntime().availableProcessors();
+            ExecutorService executor = Executors.newCachedThreadPool();
+            try (ServerSocket shuffleServer = new ServerSocket(0);
+                 Socket coordinator = new Socket(mCoordinatorHost, mCoordinatorPort)) {
+                mCoordinatorIn = new DataInputStream(new BufferedInputStream(coordinator.getInputStream()));
+                mCoordinatorOut = new DataOutputStream(new BufferedOutputStream(coordinator.getOutputStream()));
+                // The address the coordinator sees this worker at is also the one the other workers can reach it at.
+                mCoordinatorOut.writeUTF(coordinator.getLocalAddress().getHostAddress() + ":" +
+                        shuffleServer.getLocalPort());
+                mCoordinatorOut.flush();
+                mIndex = mCoordinatorIn.readInt();
+                int groupCount = mCoordinatorIn.readInt();
+                mWorkerCount = mCoordinatorIn.readInt();
+                List<String> peerAddresses = new ArrayList<>();
+                for (int i = 0; i < mWorkerCount; i++) {
+                    peerAddresses.add(mCoordinatorIn.readUTF());
+                }
+                mShuffle = ThirtyOne.newShuffle(groupCount, cores);
+
+                // Receive the map output of the other workers in the background...
+                Future<List<Future<?>>> receivers = executor.submit(() -> {
+                    List<Future<?>> result = new ArrayList<>();
+                    for (int i = 0; i < mWorkerCount - 1; i++) {
+                        Socket peer = shuffleServer.accept();
+                        result.add(executor.submit(() -> receive(peer)));
+                    }
+                    return result;
+                });
+                for (int i = 0; i < mWorkerCount; i++) {
+                    if (i == mIndex) {
+                        mPeers.add(null);
+                    } else {
+                        String address = peerAddresses.get(i);
+                        int colon = address.lastIndexOf(':');
+                        Socket peer = new Socket(address.substring(0, colon),
+                                Integer.parseInt(address.substring(colon + 1)));
+                        mPeers.add(new DataOutputStream(new BufferedOutputStream(peer.getOutputStream(), 64 * 1024)));
+                    }
+                }
+
+                // ...while mapping the splits handed out by the coordinator.
+                List<Future<?>> mappers = new ArrayList<>();
+                for (int i = 0; i < cores; i++) {
+                    mappers.add(executor.submit(() -> {
+                        ThirtyOne.Split split;
+                        while ((split = nextSplit()) != null) {
+                            // Counters are only collected by the single-JVM job.
+                            ThirtyOne.splitWords(split, this, new ThirtyOne.TaskCounters(split.toString()));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> mapper : mappers) {
+                    mapper.get();
+                }
+                for (DataOutputStream peer : mPeers) {
+                    if (peer != null) {
+                        peer.writeInt(END_OF_MAP_OUTPUT);
+                        peer.close();
+                    }
+                }
+                // Barrier: all output for the groups owned by this worker must have arrived before reducing them.
+                for (Future<?> receiver : receivers.get()) {
+                    receiver.get();
+                }
+
+                AtomicInteger threshold = new AtomicInteger();
+                List<List<ThirtyOne.Pair<String, Integer>>> topWords = IntStream.range(0, groupCount)
+                        .filter(group -> group % mWorkerCount == mIndex)
+                        .parallel()
+                        .mapToObj(group -> ThirtyOne.countWords(mShuffle, group, threshold,
+                                new ThirtyOne.TaskCounters("group " + group)))
+                        .collect(Collectors.toList());
+                mCoordinatorOut.writeByte(RESULT);
+                writePairs(mCoordinatorOut, ThirtyOne.mergeTopWords(topWords, ThirtyOne.TOP_K));
+                mCoordinatorOut.flush();
+            } finally {
+                executor.shutdownNow();
+                if (mShuffle != null) {
+                    mShuffle.close();
+                }
+            }
+        }
+
+        /**
+         * Asks the coordinator for the next split to map.
+         * @return The next split, or {@code null} if all splits have been handed out.
+         */
+        private synchronized ThirtyOne.Split nextSplit() throws IOException {
+            mCoordinatorOut.writeByte(NEXT_SPLIT);
+            mCoordinatorOut.flush();
+            byte tag = mCoordinatorIn.readByte();
+            if (tag == NO_MORE_SPLITS) {
+                return null;
+            }
+            return new ThirtyOne.Split(Paths.get(mCoordinatorIn.readUTF()), mCoordinatorIn.readLong(),
+                    mCoordinatorIn.readLong());
+        }
+
+        /**
+         * Receives the map output of another worker until it signals that it has mapped all its splits.
+         * @param peer The connection to the other worker.
+         */
+        private Void receive(Socket peer) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(peer.getInputStream(), 64 * 1024))) {
+                int group;
+                while ((group = in.readInt()) != END_OF_MAP_OUTPUT) {
+                    mShuffle.emit(group, readPairs(in));
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public int groupCount() {
+            return mShuffle.groupCount();
+        }
+
+        @Override
+        public long spillThreshold() {
+            return mShuffle.spillThreshold();
+        }
+
+        @Override
+        public void emit(int group, List<ThirtyOne.Pair<String, Integer>> words) {
+            int owner = group % mWorkerCount;
+            if (owner == mIndex) {
+                mShuffle.emit(group, words);
+            } else {
+                send(owner, group, words);
+            }
+        }
+
+        @Override
+        public void spill(int group, List<ThirtyOne.Pair<String, Integer>> words) {
+            int owner = group % mWorkerCount;
+            if (owner == mIndex) {
+                mShuffle.spill(group, words);
+            } else {
+                // The owner spills its buffers itself once they pass its threshold.
+                send(owner, group, words);
+            }
+        }
+
+        /**
+         * Sends map output for a word group to the worker that owns the group.
+         */
+        private void send(int owner, int group, List<ThirtyOne.Pair<String, Integer>> words) {
+            if (words.isEmpty()) {
+                return;
+            }
+            DataOutputStream peer = mPeers.get(owner);
+            try {
+                // Several map tasks share the connection.
+                synchronized (peer) {
+                    peer.writeInt(group);
+                    writePairs(peer, words);
+                }
+            } catch (IOException ioe) {
+                // Same reasoning as in ThirtyOne.readFile(String).
+                throw new RuntimeException(ioe);
+            }
+        }
+    }
+}